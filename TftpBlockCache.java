@@ -0,0 +1,277 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * a server-wide cache of the contents of recently served files, so
+ * that when many clients fetch the same image at once it is read from
+ * disk once rather than once per transfer.
+ *
+ * a file is identified by its path, length and modification time, so
+ * a file that changes on disk is loaded again.  contents are held in
+ * direct (off-heap) buffers, and the total is kept under a byte budget
+ * by evicting the least recently used files.  a file that is not
+ * cached yet is loaded by the first transfer to ask for it; any other
+ * transfer that asks while it is loading waits for that load instead
+ * of starting its own.  a caller that cannot wait, such as an event
+ * loop with other transfers to run, may instead look a file up
+ * without loading it, which loads it on a thread of the cache's own
+ * for whoever asks next.
+ *
+ * evicting a file only drops the cache's reference; transfers still
+ * using it keep it until they finish, and the memory is freed when the
+ * buffer is garbage collected.
+ *
+ * what is cached for a file is whatever load makes of it, which is
+ * its contents here; a subclass may cache something else derived
+ * from them, such as TftpDeflateCache does.
+ */
+class TftpBlockCache
+{
+    private final long budget;
+
+    /* guarded by this: the cached files in LRU order, and their size */
+    private final LinkedHashMap<Key,ByteBuffer> lru =
+        new LinkedHashMap<Key,ByteBuffer>(16, 0.75f, true);
+    private final Map<String,Key> byPath = new HashMap<String,Key>();
+    private long used = 0;
+
+    /* loads in progress, so concurrent misses share one disk read */
+    private final ConcurrentHashMap<Key,CompletableFuture<ByteBuffer>> loading =
+        new ConcurrentHashMap<Key,CompletableFuture<ByteBuffer>>();
+
+    /* files being loaded in the background, by path, and what loads them */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private ExecutorService loader = null;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder bypasses = new LongAdder();
+
+    TftpBlockCache(long budget)
+    {
+        this.budget = budget;
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+    public long getBypasses() { return bypasses.sum(); }
+    public long getBudget() { return budget; }
+    public synchronized long getUsed() { return used; }
+    public synchronized int getFiles() { return lru.size(); }
+
+    public String toString()
+    {
+        return "cache hits " + getHits() + " misses " + getMisses() +
+            " evictions " + getEvictions() + " bypasses " + getBypasses() +
+            " files " + getFiles() + " used " + getUsed() + "/" + budget;
+    }
+
+    /*
+     * return the contents of the file as a buffer of its own (so the
+     * caller may change its position and limit), loading it into the
+     * cache if need be.  returns null if the file is too large to
+     * cache or could not be read, in which case the caller should read
+     * the file itself.
+     */
+    public ByteBuffer get(File file)
+    {
+        Key key = new Key(file.getAbsolutePath(), file.length(), file.lastModified());
+        if(key.length > maxLength()) {
+            bypasses.increment();
+            return null;
+        }
+
+        synchronized(this) {
+            ByteBuffer b = lru.get(key);
+            if(b != null) {
+                hits.increment();
+                return b.duplicate();
+            }
+        }
+        misses.increment();
+
+        /*
+         * if another transfer is already loading the file, wait for
+         * it; otherwise load it ourselves.
+         */
+        CompletableFuture<ByteBuffer> f = new CompletableFuture<ByteBuffer>();
+        CompletableFuture<ByteBuffer> other = loading.putIfAbsent(key, f);
+        if(other != null) {
+            ByteBuffer b = other.join();
+            return b != null ? b.duplicate() : null;
+        }
+
+        ByteBuffer b = null;
+        try {
+            /*
+             * a load may have finished between our lookup and our
+             * claiming the key, so look again before reading.
+             */
+            synchronized(this) {
+                b = lru.get(key);
+            }
+            if(b == null)
+                b = load(file, key.length);
+            if(b != null && b.capacity() <= budget)
+                insert(key, b);
+        } finally {
+            f.complete(b);
+            loading.remove(key);
+        }
+        return b != null ? b.duplicate() : null;
+    }
+
+    /*
+     * the cached contents of the file, like get, or null if they are
+     * not cached; this never loads the file.
+     */
+    public ByteBuffer peek(File file)
+    {
+        Key key = new Key(file.getAbsolutePath(), file.length(), file.lastModified());
+        synchronized(this) {
+            ByteBuffer b = lru.get(key);
+            if(b == null)
+                return null;
+            hits.increment();
+            return b.duplicate();
+        }
+    }
+
+    /*
+     * the cached contents of the file, like peek, but if they are not
+     * cached, start loading them in the background, and return null.
+     */
+    public ByteBuffer lookup(File file)
+    {
+        ByteBuffer b = peek(file);
+        if(b != null)
+            return b;
+        if(file.length() > maxLength())
+            bypasses.increment();
+        else
+            background(file);
+        return null;
+    }
+
+    /* load the file into the cache on our own thread, unless it already is */
+    void background(final File file)
+    {
+        final String path = file.getAbsolutePath();
+        if(!pending.add(path))
+            return;
+        loader().execute(() -> {
+            try {
+                get(file);
+            } finally {
+                pending.remove(path);
+            }
+        });
+    }
+
+    private synchronized ExecutorService loader()
+    {
+        if(loader == null) {
+            loader = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, getClass().getSimpleName());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return loader;
+    }
+
+    /* the longest file the cache will take */
+    long maxLength()
+    {
+        return Math.min(budget, Integer.MAX_VALUE);
+    }
+
+    /*
+     * read the whole file into a new direct buffer.  returns null if
+     * the file is now shorter than it was when we looked at it.
+     */
+    ByteBuffer load(File file, long length)
+    {
+        try(FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer b = ByteBuffer.allocateDirect((int) length);
+            while(b.hasRemaining()) {
+                if(fc.read(b, b.position()) < 0)
+                    return null;
+            }
+            b.flip();
+            return b.asReadOnlyBuffer();
+        } catch(IOException | OutOfMemoryError e) {
+            return null;
+        }
+    }
+
+    /*
+     * add a loaded file, replacing any older version of the same path,
+     * and evict least recently used files until we are within budget.
+     */
+    private synchronized void insert(Key key, ByteBuffer b)
+    {
+        Key old = byPath.put(key.path, key);
+        if(old != null && !old.equals(key)) {
+            ByteBuffer ob = lru.remove(old);
+            if(ob != null)
+                used -= ob.capacity();
+        }
+        if(lru.put(key, b) == null)
+            used += b.capacity();
+
+        Iterator<Map.Entry<Key,ByteBuffer>> it = lru.entrySet().iterator();
+        while(used > budget && it.hasNext()) {
+            Map.Entry<Key,ByteBuffer> e = it.next();
+            if(e.getKey().equals(key))
+                continue;
+            used -= e.getValue().capacity();
+            byPath.remove(e.getKey().path, e.getKey());
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    /* what a cached file is looked up by */
+    private static final class Key
+    {
+        final String path;
+        final long length;
+        final long mtime;
+
+        Key(String path, long length, long mtime)
+        {
+            this.path = path;
+            this.length = length;
+            this.mtime = mtime;
+        }
+
+        public boolean equals(Object o)
+        {
+            if(!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return path.equals(k.path) && length == k.length && mtime == k.mtime;
+        }
+
+        public int hashCode()
+        {
+            return path.hashCode() * 31 + Long.hashCode(length ^ mtime);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TftpBlockCacheTest
+{
+    /* create a temporary file of the given size, filled with a pattern */
+    private static File tempFile(int size, int seed) throws IOException
+    {
+        byte[] data = new byte[size];
+        for(int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return TftpTestFiles.holding(data);
+    }
+
+    /*
+     * fetch the same file twice; ensure that the first fetch is a miss,
+     * the second a hit, and that the contents match the file.
+     */
+    @Test
+    @DisplayName("test hit and miss")
+    void testHitMiss() throws IOException {
+        TftpBlockCache cache = new TftpBlockCache(1 << 20);
+        File f = tempFile(5000, 1);
+        ByteBuffer a = cache.get(f);
+        ByteBuffer b = cache.get(f);
+        assertNotNull(a);
+        assertNotNull(b);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(5000, b.remaining());
+        assertEquals((byte) (4999 * 31 + 1), b.get(4999));
+    }
+
+    /*
+     * fill the cache past its budget; ensure that the least recently
+     * used file is evicted and the total stays within budget.
+     */
+    @Test
+    @DisplayName("test LRU eviction")
+    void testEviction() throws IOException {
+        TftpBlockCache cache = new TftpBlockCache(10000);
+        File f1 = tempFile(4000, 1);
+        File f2 = tempFile(4000, 2);
+        File f3 = tempFile(4000, 3);
+        cache.get(f1);
+        cache.get(f2);
+        cache.get(f1);      /* f2 is now least recently used */
+        cache.get(f3);
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.getUsed() <= 10000);
+        cache.get(f1);
+        assertEquals(2, cache.getHits(), "f1 stayed cached");
+        cache.get(f2);
+        assertEquals(4, cache.getMisses(), "f2 was evicted");
+    }
+
+    /*
+     * ensure that a file larger than the budget is not cached, and
+     * that a file whose contents change on disk is loaded again.
+     */
+    @Test
+    @DisplayName("test bypass and reload")
+    void testBypassReload() throws IOException {
+        TftpBlockCache cache = new TftpBlockCache(1000);
+        File big = tempFile(2000, 1);
+        assertNull(cache.get(big));
+        assertEquals(1, cache.getBypasses());
+
+        File f = tempFile(100, 1);
+        cache.get(f);
+        try(FileOutputStream fos = new FileOutputStream(f, true)) {
+            fos.write(new byte[10]);
+        }
+        ByteBuffer b = cache.get(f);
+        assertEquals(110, b.remaining());
+        assertEquals(2, cache.getMisses());
+        assertEquals(1, cache.getFiles(), "old version was replaced");
+    }
+
+    /*
+     * looking up a file that is not cached finds nothing, but loads it
+     * in the background, so that a later look up finds it.
+     */
+    @Test
+    @DisplayName("test lookup")
+    void testLookup() throws Exception {
+        File f = tempFile(5000, 9);
+        TftpBlockCache cache = new TftpBlockCache(1 << 20);
+        assertNull(cache.lookup(f));
+        ByteBuffer b = null;
+        for(int i = 0; i < 500 && b == null; i++) {
+            Thread.sleep(10);
+            b = cache.lookup(f);
+        }
+        assertNotNull(b, "loaded in the background");
+        assertEquals(5000, b.remaining());
+        assertEquals(1, cache.getMisses());
+    }
+}
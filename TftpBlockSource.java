@@ -0,0 +1,238 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * the blocks of a file being served, read straight out of a memory
+ * mapping of the file (or out of a copy of its contents held in
+ * TftpBlockCache).  a block is returned as a slice of the mapped
+ * region, so it can be written to a channel without being copied onto
+ * the heap, and any block can be fetched again by number when it has
+ * to be retransmitted.
+ *
+ * a single mapping is limited to 2GB, so large files are mapped in
+ * segments.  each segment holds a whole number of blocks, so a block
+ * never straddles two mappings.
+ *
+ * a mapped source may be given a TftpReadAhead, which reads its pages
+ * in ahead of the blocks being sent, so that sending a block does not
+ * wait for the disk.
+ */
+class TftpBlockSource
+{
+    /* the most we map at once */
+    static final long MAX_SEGMENT = 1L << 30;
+
+    /* what an empty block is; it has nothing to change */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final long size;
+    private final int blksize;
+
+    /* the range of the file being sent; the whole file by default */
+    private long start = 0;
+    private long end;
+    private final long segmentSize;
+    private final ByteBuffer[] segments;
+
+    /* whether the segments are mappings, rather than memory */
+    private final boolean mapped;
+
+    /*
+     * reading ahead, if we are: how far ahead of the block being sent
+     * to read, how far we have asked the read-ahead to read, where the
+     * block being sent starts, whether a read is under way, and
+     * whether the last one finished after the sender had passed its
+     * start (late) or well before the sender got to it (early).
+     * views are the readers' own views of the segments, whose
+     * positions and limits block() does not move.
+     */
+    private TftpReadAhead readAhead = null;
+    private ByteBuffer[] views;
+    private long depth;
+    private long requested;
+    private volatile long sending;
+    private volatile boolean loading = false;
+    private volatile boolean late = false;
+    private volatile boolean early = false;
+
+    /* what the readers read, so that reading it is not optimised away */
+    private volatile int touched;
+
+    TftpBlockSource(File file, int blksize) throws IOException
+    {
+        this.blksize = blksize;
+        this.segmentSize = (MAX_SEGMENT / blksize) * blksize;
+        this.mapped = true;
+
+        FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            /*
+             * the size is fixed when we open the file; if it grows
+             * while we are serving it, the client gets what was there
+             * at the start.  the mappings stay valid after the channel
+             * is closed.
+             */
+            this.size = fc.size();
+            this.end = size;
+            int n = (int)((size + segmentSize - 1) / segmentSize);
+            this.segments = new ByteBuffer[n];
+            for(int i = 0; i < n; i++) {
+                long pos = i * segmentSize;
+                segments[i] = fc.map(FileChannel.MapMode.READ_ONLY, pos,
+                                     Math.min(segmentSize, size - pos));
+            }
+        } finally {
+            fc.close();
+        }
+    }
+
+    /*
+     * serve the blocks of contents, the whole of a file that has
+     * already been read into memory.
+     */
+    TftpBlockSource(ByteBuffer contents, int blksize)
+    {
+        this.blksize = blksize;
+        this.segmentSize = Math.max(contents.capacity(), 1);
+        this.size = contents.capacity();
+        this.end = size;
+        this.segments = new ByteBuffer[] { contents };
+        this.mapped = false;
+    }
+
+    public long size() { return size; }
+    public int blksize() { return blksize; }
+
+    /*
+     * send only length bytes from offset, which must be a multiple of
+     * blksize, so that blocks still never straddle two mappings.  the
+     * range is cut short at the end of the file.  returns the length
+     * of the range, or -1 if it does not start within the file.
+     */
+    public long range(long offset, long length)
+    {
+        if(offset < 0 || offset > size || offset % blksize != 0 || length < 0)
+            return -1;
+        start = offset;
+        end = offset + Math.min(length, size - offset);
+        return end - start;
+    }
+
+    /*
+     * read the range ahead of the blocks being sent with r, starting
+     * now, so that the first blocks are read while the client is
+     * still answering our OACK.  call it after range.  a source that
+     * is already in memory has nothing to read, and ignores it.
+     */
+    public void readAhead(TftpReadAhead r)
+    {
+        if(!mapped || start == end)
+            return;
+        readAhead = r;
+        views = new ByteBuffer[segments.length];
+        for(int i = 0; i < segments.length; i++)
+            views[i] = segments[i].duplicate();
+        depth = TftpReadAhead.MIN_DEPTH;
+        requested = sending = start;
+        ahead(start, start);
+    }
+
+    /* how far ahead of the block being sent we read; for tests */
+    long depth() { return depth; }
+
+    /*
+     * the number of blocks in the transfer.  the last block is always
+     * shorter than blksize, so a range that is an exact multiple of
+     * blksize ends with an empty block.
+     */
+    public long blocks()
+    {
+        return (end - start) / blksize + 1;
+    }
+
+    /* the length of block n, counting from one */
+    public int length(long n)
+    {
+        long pos = start + (n - 1) * blksize;
+        return (int) Math.max(0, Math.min(blksize, end - pos));
+    }
+
+    /*
+     * return block n, counting from one, as a buffer whose remaining
+     * bytes are the block's contents.  the buffer is the mapping (or
+     * cached contents) itself with its position and limit moved to
+     * the block, so nothing is copied or allocated; it is only valid
+     * until the next call.  each transfer has a source of its own, so
+     * nothing else moves them.
+     */
+    public ByteBuffer block(long n)
+    {
+        int len = length(n);
+        if(len == 0)
+            return EMPTY;
+
+        long pos = start + (n - 1) * blksize;
+        if(readAhead != null)
+            ahead(pos, pos + len);
+        ByteBuffer seg = segments[(int)(pos / segmentSize)];
+        int off = (int)(pos % segmentSize);
+        seg.limit(off + len).position(off);
+        return seg;
+    }
+
+    /*
+     * we are about to send the bytes from pos to upto.  unless a read
+     * is under way, and once less than half the depth is left ahead
+     * of upto, read from where the last read stopped to depth beyond
+     * upto.  if the last read was late, the depth is too shallow for
+     * how long the disk takes, so first double it; if it was early,
+     * deeper than we need, so halve it.
+     */
+    private void ahead(long pos, long upto)
+    {
+        sending = pos;
+        if(loading || requested >= end || requested - upto > depth / 2)
+            return;
+        if(late)
+            depth = Math.min(depth * 2, TftpReadAhead.MAX_DEPTH);
+        else if(early)
+            depth = Math.max(depth / 2, TftpReadAhead.MIN_DEPTH);
+        late = early = false;
+        final long from = requested;
+        final long to = Math.min(end, upto + depth);
+        final long margin = depth / 4;
+        requested = to;
+        loading = true;
+        readAhead.execute(() -> load(from, to, margin));
+    }
+
+    /*
+     * on a read-ahead thread, touch a byte of each page from from to
+     * to, which faults it in from the disk if it is not in the page
+     * cache already.  the read was late if the sender has already
+     * started on the blocks it was to read, which counts as a stall,
+     * and early if it is still at least margin short of them.
+     */
+    private void load(long from, long to, long margin)
+    {
+        try {
+            int sum = 0;
+            for(long pos = from; pos < to; pos += TftpReadAhead.PAGE)
+                sum += views[(int)(pos / segmentSize)].get((int)(pos % segmentSize));
+            touched = sum;
+            readAhead.read(to - from);
+            long at = sending;
+            if(at > from){
+                late = true;
+                readAhead.stalled();
+            } else if(from - at >= margin){
+                early = true;
+            }
+        } finally {
+            loading = false;
+        }
+    }
+}
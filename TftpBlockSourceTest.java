@@ -0,0 +1,108 @@
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TftpBlockSourceTest
+{
+    /* a source over 1000 bytes of a pattern, in 100 byte blocks */
+    private static TftpBlockSource source()
+    {
+        byte[] data = new byte[1000];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        return new TftpBlockSource(ByteBuffer.wrap(data), 100);
+    }
+
+    /*
+     * a range starts at its offset, ends with a short (here empty)
+     * block, and is cut short at the end of the file.
+     */
+    @Test
+    @DisplayName("test range")
+    void testRange() {
+        TftpBlockSource s = source();
+        assertEquals(11, s.blocks(), "1000 bytes end with an empty block");
+
+        assertEquals(300, s.range(200, 300));
+        assertEquals(4, s.blocks());
+        assertEquals((byte) 200, s.block(1).get());
+        assertEquals((byte) 400, s.block(3).get(), "byte 400");
+        assertEquals(0, s.length(4));
+
+        assertEquals(100, s.range(900, 150), "cut short at the end");
+        assertEquals(2, s.blocks());
+        assertEquals(100, s.length(1));
+
+        assertEquals(0, s.range(0, 0));
+        assertEquals(1, s.blocks());
+        assertEquals(0, s.length(1));
+    }
+
+    /* a range must start on a block boundary within the file */
+    @Test
+    @DisplayName("test bad range")
+    void testBadRange() {
+        TftpBlockSource s = source();
+        assertEquals(-1, s.range(50, 100));
+        assertEquals(-1, s.range(1100, 100));
+        assertEquals(-1, s.range(-100, 100));
+        assertEquals(0, s.range(1000, 100), "an empty range at the end is fine");
+    }
+
+    /*
+     * reading ahead reads the whole range, once, ahead of the blocks
+     * being sent.  a read that finishes after the sender has started
+     * on it (here the first, which is left queued until the first
+     * blocks are sent) is a stall, and doubles the depth; reads that
+     * then keep finishing well ahead shrink it again.  a source in
+     * memory has nothing to read ahead.
+     */
+    @Test
+    @DisplayName("test read ahead")
+    void testReadAhead() throws IOException {
+        byte[] data = new byte[3 << 20];
+        for(int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i / 1024);
+        }
+        File f = TftpTestFiles.holding(data);
+
+        ArrayDeque<Runnable> queued = new ArrayDeque<Runnable>();
+        TftpReadAhead r = new TftpReadAhead(queued::add);
+        TftpBlockSource s = new TftpBlockSource(f, 1024);
+        s.readAhead(r);
+        assertEquals(1, queued.size(), "the first read starts at once");
+
+        assertEquals((byte) 0, s.block(1).get());
+        assertEquals((byte) 1, s.block(2).get());
+        assertEquals(0, r.getStalls(), "not a stall while the read is under way");
+        queued.poll().run();
+        assertEquals(1, r.getStalls(), "late once, however many blocks wait for it");
+
+        long deepest = 0;
+        for(long n = 3; n <= s.blocks(); n++) {
+            ByteBuffer b = s.block(n);
+            if(b.hasRemaining()) {
+                assertEquals((byte) (n - 1), b.get(), "block " + n);
+            }
+            deepest = Math.max(deepest, s.depth());
+            while(!queued.isEmpty()) {
+                queued.poll().run();
+            }
+        }
+        assertEquals(2 * TftpReadAhead.MIN_DEPTH, deepest, "read deeper after the stall");
+        assertEquals(TftpReadAhead.MIN_DEPTH, s.depth(), "and shallower once reads were early");
+        assertEquals(1, r.getStalls(), "never late again");
+        assertEquals(data.length, r.getBytes(), "everything read, once");
+        f.delete();
+
+        source().readAhead(r);
+        assertTrue(queued.isEmpty(), "nothing to read in memory");
+    }
+}
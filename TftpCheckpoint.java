@@ -0,0 +1,124 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * a sidecar file beside a download's output, recording how much of
+ * the file has been written and forced to disk, so that a download
+ * that fails part way can be resumed from there rather than from the
+ * start.  it holds the offset, the size of the whole file on the
+ * server, the time it was last modified there (or -1 if the server
+ * did not say), and the name it was fetched by, on lines of their
+ * own; a checkpoint for another name, or for a file that has since
+ * changed size or been modified, is not resumed from.
+ *
+ * the writer thread saves it every INTERVAL bytes, after forcing the
+ * output, by writing a new one beside it and renaming it into place,
+ * so a crash leaves either the old checkpoint or the new one.  it is
+ * deleted when the download completes.
+ */
+class TftpCheckpoint
+{
+    /* how many bytes are written between checkpoints by default */
+    static final long INTERVAL = 8L << 20;
+
+    final long interval;
+    private final File file;
+    private final File temp;
+    private final File output;
+    private final String name;
+
+    /*
+     * the size of the whole file, once the server has told us, and
+     * when it was last modified, if the server said
+     */
+    private volatile long size = -1;
+    private volatile long mtime = -1;
+
+    TftpCheckpoint(File output, String name)
+    {
+        this(output, name, INTERVAL);
+    }
+
+    TftpCheckpoint(File output, String name, long interval)
+    {
+        this.output = output;
+        this.name = name;
+        this.interval = interval;
+        this.file = new File(output.getPath() + ".checkpoint");
+        this.temp = new File(output.getPath() + ".checkpoint.tmp");
+    }
+
+    public File getFile() { return file; }
+
+    /*
+     * where to resume the download: the checkpointed offset, rounded
+     * down to a whole number of blocks of blksize, if there is a
+     * checkpoint for this name and the output still holds that much;
+     * otherwise 0, to start again.
+     */
+    long resumeAt(int blksize)
+    {
+        try {
+            String[] lines = new String(Files.readAllBytes(file.toPath()),
+                                        StandardCharsets.UTF_8).split("\n");
+            if(lines.length != 4 || !lines[3].equals(name))
+                return 0;
+            long offset = Long.parseLong(lines[0].trim());
+            long s = Long.parseLong(lines[1].trim());
+            long m = Long.parseLong(lines[2].trim());
+            if(offset < 0 || offset > s || output.length() < offset)
+                return 0;
+            size = s;
+            mtime = m;
+            return offset / blksize * blksize;
+        } catch(IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /* the size of the whole file the checkpoint was for, or -1 */
+    long size() { return size; }
+
+    /* the size of the whole file, which later checkpoints record */
+    void setSize(long size) { this.size = size; }
+
+    /* when the file the checkpoint was for was modified, or -1 */
+    long mtime() { return mtime; }
+    void setMtime(long mtime) { this.mtime = mtime; }
+
+    /*
+     * record that the output has been forced to disk up to offset.
+     * does nothing until we know the file's size.
+     */
+    void save(long offset) throws IOException
+    {
+        long s = size;
+        if(s < 0)
+            return;
+        String text = offset + "\n" + s + "\n" + mtime + "\n" + name + "\n";
+        byte[] b = text.getBytes(StandardCharsets.UTF_8);
+        try(FileChannel fc = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                                              StandardOpenOption.WRITE,
+                                              StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bb = ByteBuffer.wrap(b);
+            while(bb.hasRemaining())
+                fc.write(bb);
+            fc.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* the download completed, or is starting again; forget the checkpoint */
+    void delete()
+    {
+        file.delete();
+        temp.delete();
+    }
+}
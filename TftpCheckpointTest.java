@@ -0,0 +1,44 @@
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TftpCheckpointTest
+{
+    /*
+     * a saved checkpoint resumes from its offset, rounded down to a
+     * whole block; one for another name, or beyond the end of what
+     * the output holds, or missing, resumes from the start.
+     */
+    @Test
+    @DisplayName("test resume at")
+    void testResumeAt() throws IOException {
+        File out = TftpTestFiles.holding(new byte[5000]);
+        TftpCheckpoint c = new TftpCheckpoint(out, "some/file");
+        c.getFile().deleteOnExit();
+        assertEquals(0, c.resumeAt(512));
+
+        c.save(4000);
+        assertFalse(c.getFile().exists(), "nothing saved before the size is known");
+        c.setSize(10000);
+        c.setMtime(1234567890000L);
+        c.save(4000);
+        TftpCheckpoint again = new TftpCheckpoint(out, "some/file");
+        assertEquals(-1, again.mtime());
+        assertEquals(3584, again.resumeAt(512));
+        assertEquals(10000, again.size());
+        assertEquals(1234567890000L, again.mtime());
+        assertEquals(4000, again.resumeAt(1000));
+
+        assertEquals(0, new TftpCheckpoint(out, "other/file").resumeAt(512));
+        c.save(6000);
+        assertEquals(0, new TftpCheckpoint(out, "some/file").resumeAt(512));
+
+        c.delete();
+        assertFalse(c.getFile().exists());
+        assertEquals(0, new TftpCheckpoint(out, "some/file").resumeAt(512));
+    }
+}
@@ -1,161 +1,391 @@
 //Shifaz Ali, 1323080
-import java.io.FileOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class TftpClient
 {
+    static final String USAGE =
+        "usage: TftpClient [-w window] [-b blksize] [-a attempts] [-f] [-z] [-g] [-r] [-t]\n" +
+        "                  [-d crc32c|sha-256] [-c concurrency] [-m manifest]\n" +
+        "                  [-k segments]\n" +
+        "                  <name> <port> [file...]\n";
+
+    /* how many files a batch fetches at once by default */
+    static final int DEFAULT_CONCURRENCY = 4;
+
     public static void main(String[] args)
     {
-        /* expect three arguments */
-        if(args.length != 3) {
-            System.err.println("usage: TftpClient <name> <port> <file>\n");
-            return;
+        /*
+         * process any leading options.  -w asks the server for a
+         * window of that many blocks in flight; without it we use
+         * plain stop-and-wait, which every server understands.  -b
+         * asks for blocks of that many bytes instead of 512 (1468
+         * fills an ethernet frame).  -a sets how many times we time
+         * out and resend before giving up.  -f forces the file to disk
+         * before we exit.  -z asks the server to send the file
+         * compressed, which it does if that makes it any smaller.
+         * -g asks to share a multicast transfer of each file with any
+         * other clients fetching it at the same time, if the server
+         * has a group to send it to.  -r keeps a checkpoint beside
+         * each file of how much of it is safely on disk, so that if
+         * the download fails, running it again with -r fetches only
+         * the rest; it cannot be used with -k, whose segments keep no
+         * checkpoint.  -d asks the server for a digest of each file
+         * with that algorithm, and refuses (deletes) a file that does
+         * not match it, or that the server gave no digest for; it
+         * cannot be used with -k or -g, which do not see the file whole
+         * and in order, so could not check it.  -t asks the server for
+         * the size of each file, so that the file can be made that big
+         * up front and its blocks copied straight into a mapping of it,
+         * in whatever order they arrive.
+         * -m names a manifest file listing files to fetch, one per
+         * line, as well as any on the command line; fetching more
+         * than one file is a batch, which fetches -c files at once
+         * and reports how fast each one came.  -k fetches a single
+         * file as that many segments at once, each over its own
+         * session (and uncompressed).
+         */
+        int window = 1;
+        int blksize = TftpPacket.DEFAULT_BLKSIZE;
+        int maxAttempts = 5;
+        boolean sync = false;
+        boolean compress = false;
+        boolean multicast = false;
+        boolean resume = false;
+        boolean askSize = false;
+        String digest = null;
+        int concurrency = DEFAULT_CONCURRENCY;
+        String manifest = null;
+        int segments = 1;
+        int argi = 0;
+        try {
+            while(argi < args.length && args[argi].startsWith("-")) {
+                if(args[argi].equals("-w") && argi + 1 < args.length) {
+                    window = Integer.parseInt(args[argi+1]);
+                    argi += 2;
+                } else if(args[argi].equals("-b") && argi + 1 < args.length) {
+                    blksize = Integer.parseInt(args[argi+1]);
+                    argi += 2;
+                } else if(args[argi].equals("-a") && argi + 1 < args.length) {
+                    maxAttempts = Integer.parseInt(args[argi+1]);
+                    argi += 2;
+                } else if(args[argi].equals("-f")) {
+                    sync = true;
+                    argi += 1;
+                } else if(args[argi].equals("-z")) {
+                    compress = true;
+                    argi += 1;
+                } else if(args[argi].equals("-g")) {
+                    multicast = true;
+                    argi += 1;
+                } else if(args[argi].equals("-r")) {
+                    resume = true;
+                    argi += 1;
+                } else if(args[argi].equals("-t")) {
+                    askSize = true;
+                    argi += 1;
+                } else if(args[argi].equals("-d") && argi + 1 < args.length) {
+                    digest = args[argi+1];
+                    argi += 2;
+                } else if(args[argi].equals("-c") && argi + 1 < args.length) {
+                    concurrency = Integer.parseInt(args[argi+1]);
+                    argi += 2;
+                } else if(args[argi].equals("-k") && argi + 1 < args.length) {
+                    segments = Integer.parseInt(args[argi+1]);
+                    argi += 2;
+                } else if(args[argi].equals("-m") && argi + 1 < args.length) {
+                    manifest = args[argi+1];
+                    argi += 2;
+                } else {
+                    argi = args.length;
+                }
+            }
+        } catch(NumberFormatException e) {
+            argi = args.length;
+        }
+
+        /* expect a name, a port, and at least one file */
+        int files = args.length - argi - 2;
+        if(files < 0 || (files == 0 && manifest == null) ||
+           (digest != null && (TftpDigest.create(digest) == null ||
+                               segments > 1 || multicast)) ||
+           (resume && segments > 1) ||
+           window < 1 || maxAttempts < 1 || concurrency < 1 || segments < 1 ||
+           blksize < TftpPacket.MIN_BLKSIZE || blksize > TftpPacket.MAX_BLKSIZE) {
+            System.err.println(USAGE);
+            System.exit(1);
         }
 
         /* process the command line arguments */
-        String name = args[0];
-        String filename = args[2];
+        String name = args[argi];
 
         /*
          * use Integer.parseInt to get the number from the second
          * (port) argument
          */
         int port;
-        port = Integer.parseInt(args[1]);
-
-        FileOutputStream fos;
+        port = Integer.parseInt(args[argi+1]);
 
         /*
          * use InetAddress.getByName to get an IP address for the name
          * argument
          */
         InetAddress ia;
-        /* allocate a DatagramSocket, and setSoTimeout to 6s (6000ms) */
-        DatagramSocket ds;
+        boolean ok = true;
         try{
             ia = InetAddress.getByName(name);
-            ds = new DatagramSocket();
-            ds.setSoTimeout(6000);
+            List<TftpDownload> downloads = new ArrayList<TftpDownload>();
+            List<String> filenames = new ArrayList<String>();
+            for(int i = argi + 2; i < args.length; i++)
+                filenames.add(args[i]);
+            if(manifest != null)
+                filenames.addAll(readManifest(manifest));
+            for(String filename : filenames) {
+                TftpDownload d = new TftpDownload(ia, port, filename, new File(filename));
+                d.window = window;
+                d.blksize = blksize;
+                d.maxAttempts = maxAttempts;
+                d.sync = sync;
+                d.compress = compress;
+                d.multicast = multicast;
+                d.resume = resume;
+                d.askSize = askSize;
+                d.digest = digest;
+                downloads.add(d);
+            }
 
             /*
-             * open an output file; preface the filename with "rx-" so
-             * that you do not try to overwrite a file that the server is
-             * about to try to send to you.
+             * allocate a UDP transport.  its timeout follows our
+             * estimate of the round trip time to the server, starting
+             * at one second.  a segmented download or a batch opens
+             * more like it.
              */
-            fos = new FileOutputStream(filename);
+            TftpTransport ds = new TftpUdpTransport();
+            try {
+                if(downloads.size() == 1 && manifest == null && segments > 1) {
+                    ok = segmented(downloads.get(0), segments, ds);
+                } else if(downloads.size() == 1 && manifest == null) {
+                    TftpDownload d = downloads.get(0);
+                    ok = d.run(ds);
+                    if(!ok)
+                        System.out.println(d.getError());
+                } else {
+                    ok = batch(downloads, concurrency, ds);
+                }
+            } finally {
+                /* cleanup -- close the transport */
+                ds.close();
+            }
+        }catch (Exception e){
+            System.err.println("Error: " + e);
+            ok = false;
+        }
 
-            /* ###
-             * create a read request using TftpPacket.createRRQ and then
-             * send the packet over the DatagramSocket.
-             */
-            DatagramPacket dpRRQ = TftpPacket.createRRQ(ia, port, filename);
-            ds.send(dpRRQ);
+        /* exit with a failure status if any file did not arrive */
+        if(!ok)
+            System.exit(1);
+    }
 
-            /*
-             * declare an integer to keep track of the block that you
-             * expect to receive next, initialized to one.  allocate a
-             * byte buffer of 514 bytes (i.e., 512 block size plus two one
-             * byte header fields) to receive DATA packets.  allocate a
-             * DatagramPacket backed by that byte buffer to pass to
-             * DatagramSocket::receive to receive packets into.
-             */
-            int expectedBlock = 1;
-            byte[] buffer = new byte[514];
-            DatagramPacket receiveData = new DatagramPacket(buffer, buffer.length);
-            ds.receive(receiveData);
+    /*
+     * read a manifest: one file name per line.  blank lines, and
+     * lines starting with #, are ignored.
+     */
+    static List<String> readManifest(String manifest) throws IOException
+    {
+        List<String> names = new ArrayList<String>();
+        try(BufferedReader in = new BufferedReader(new FileReader(manifest))) {
+            String line;
+            while((line = in.readLine()) != null) {
+                line = line.trim();
+                if(!line.isEmpty() && !line.startsWith("#"))
+                    names.add(line);
+            }
+        }
+        return names;
+    }
 
-            /*
-             * an infinite loop that we will eventually break out of, when
-             * either an exception occurs, or we receive a block less than
-             * 512 bytes in size.
-             */
-            while (true){
-                try{
-                    /*
-                     * receive a packet on the DatagramSocket, and then
-                     * parse it with TftpPacket.parse.  get the IP address
-                     * and port where the packet came from.  The port will
-                     * be different to the port you sent the RRQ to, and
-                     * we will use these values to transmit the ACK to
-                     */
-                    TftpPacket tp = TftpPacket.parse(receiveData);
-                    InetAddress dst = tp.getAddr();
-                    int tpPort = tp.getPort();
-
-                    /*
-                     * if we could not parse the packet (parse returns
-                     * null), then use "continue" to loop again without
-                     * executing the remaining code in the loop.
-                     */
-                    if(TftpPacket.parse(receiveData) == null){
-                        continue;
-                    }
+    /*
+     * fetch a batch of files, concurrency at a time, in this one
+     * process.  each download borrows a socket from a pool of
+     * concurrency sockets, opened from ds, and gives it back when done,
+     * so a batch of hundreds of files opens only a handful.  print a
+     * line for each file as it finishes, and a total at the end.
+     * returns whether every file arrived.
+     */
+    static boolean batch(List<TftpDownload> downloads, int concurrency,
+                         TftpTransport ds) throws Exception
+    {
+        concurrency = Math.min(concurrency, downloads.size());
+        final ArrayBlockingQueue<PooledSocket> pool =
+            new ArrayBlockingQueue<PooledSocket>(Math.max(1, concurrency));
+        for(int i = 0; i < concurrency; i++)
+            pool.add(new PooledSocket(ds.open()));
 
-                    /*
-                     * if the response is an ERROR packet, then print the
-                     * error message and return.
-                     */
-                    if(tp.getType().equals(TftpPacket.Type.ERROR)){
-                        System.out.println(tp.getError());
-                        return;
+        final AtomicLong total = new AtomicLong();
+        final AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, concurrency));
+        long start = System.nanoTime();
+        try {
+            for(final TftpDownload d : downloads) {
+                executor.execute(() -> {
+                    String result;
+                    PooledSocket ps = null;
+                    try {
+                        ps = pool.take();
+                        TftpDownload previous = ps.last;
+                        ps.last = d;
+                        if(d.run(ps.ds, previous)) {
+                            total.addAndGet(d.getBytes());
+                            result = d.getBytes() + " bytes in " + d.getNanos() / 1000000 +
+                                "ms, " + rate(d.getBytes(), d.getNanos());
+                        } else {
+                            failed.incrementAndGet();
+                            result = "Error: " + d.getError();
+                        }
+                    } catch(Exception e) {
+                        failed.incrementAndGet();
+                        result = "Error: " + e;
+                    } finally {
+                        if(ps != null)
+                            pool.add(ps);
                     }
+                    System.out.println(d.getFilename() + ": " + result);
+                });
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            executor.shutdownNow();
+            for(PooledSocket ps : pool)
+                ps.ds.close();
+        }
 
-                    /*
-                     * if the packet is not a DATA packet, then use
-                     * "continue" to loop again without executing the
-                     * remaining code in the loop.
-                     */
-                    if(!tp.getType().equals(TftpPacket.Type.DATA)){
-                        continue;
-                    }
+        long nanos = System.nanoTime() - start;
+        System.out.println((downloads.size() - failed.get()) + " of " + downloads.size() +
+                           " files, " + total.get() + " bytes in " + nanos / 1000000 +
+                           "ms, " + rate(total.get(), nanos));
+        return failed.get() == 0;
+    }
 
-                    /*
-                     * if the block number is exactly the block that we
-                     * were expecting, then get the data (TftpPacket::getData)
-                     * and then write it to disk.  then, send an ack for the
-                     * block.  then, check to see if we received less than
-                     * 512 bytes in that block; if we did, then we infer that
-                     * the sender has finished, and break out of the while loop.
-                     */
-                    if(tp.getBlock() == expectedBlock){
-                        byte[] data = tp.getData();
-                        fos.write(data);
-                        DatagramPacket ack = TftpPacket.createACK(dst, tpPort,tp.getBlock());
-                        ds.send(ack);
-
-                        if(data.length < 512){
-                            break;
+    /*
+     * fetch one file as several segments at once.  first ask for an
+     * empty range, just to learn the file's size, then preallocate the
+     * output file, split the file into segments of whole blocks, and
+     * fetch each over a socket of its own, opened from ds, writing
+     * where it belongs in the file.  a server that does not do byte
+     * ranges gets an ordinary download instead, on ds, where the probe
+     * ran.  if any segment fails, the rest are cancelled, and once they
+     * have all stopped writing, the output, which would otherwise look
+     * whole with holes of zeros in it, is deleted, as it is whenever
+     * the file does not arrive.  returns whether it did.
+     */
+    static boolean segmented(TftpDownload d, int segments, TftpTransport ds) throws Exception
+    {
+        String error = null;
+        boolean ok = false;
+        FileChannel ch = FileChannel.open(d.getOutput().toPath(), StandardOpenOption.CREATE,
+                                          StandardOpenOption.WRITE,
+                                          StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            TftpDownload probe = d.segment(ch, 0, 0);
+            probe.askSize = true;
+            if(!probe.run(ds) || probe.getSize() < 0) {
+                ok = d.run(ds, probe);
+                if(!ok)
+                    System.out.println(d.getError());
+                return ok;
+            }
+
+            long size = probe.getSize();
+            if(size > 0)
+                ch.write(ByteBuffer.allocate(1), size - 1);
+            long blocks = (size + d.blksize - 1) / d.blksize;
+            long per = Math.max(1, (blocks + segments - 1) / segments) * d.blksize;
+
+            List<TftpDownload> parts = new ArrayList<TftpDownload>();
+            for(long off = 0; off < size; off += per)
+                parts.add(d.segment(ch, off, Math.min(per, size - off)));
+
+            /*
+             * take each part's result as it finishes, so that the first
+             * failure cancels the others straight away, but wait for
+             * them all, since they write through ch.
+             */
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parts.size()));
+            try {
+                ExecutorCompletionService<String> results =
+                    new ExecutorCompletionService<String>(executor);
+                for(final TftpDownload part : parts) {
+                    results.submit(() -> {
+                        TftpTransport s = ds.open();
+                        try {
+                            return part.run(s) ? null : part.getError();
+                        } finally {
+                            s.close();
                         }
+                    });
+                }
+                for(int i = 0; i < parts.size(); i++) {
+                    String e;
+                    try {
+                        e = results.take().get();
+                    } catch(ExecutionException x) {
+                        e = "Error: " + x.getCause();
                     }
-                    /*
-                     * else, if the block number is the same as the block
-                     * number we just received, send an ack without writing
-                     * the block to disk, etc.  in this case, the server
-                     * didn't receive the ACK we sent, and retransmitted.
-                     */
-                    else if(tp.getBlock() == TftpPacket.lastBlock(expectedBlock)){
-                        byte[] data = tp.getData();
-                        DatagramPacket ack = TftpPacket.createACK(dst, tpPort,tp.getBlock());
-                        ds.send(ack);
-
-                        if(data.length < 512){
-                            break;
-                        }
+                    if(e != null && error == null) {
+                        error = e;
+                        for(TftpDownload part : parts)
+                            part.cancel();
                     }
-                    expectedBlock = TftpPacket.nextBlock(expectedBlock);
-                }catch (Exception e){
-                    System.err.println("Error: " + e);
-                    break;
                 }
+            } finally {
+                executor.shutdown();
             }
-            /* cleanup -- close the output file and the DatagramSocket */
-            fos.close();
-            ds.close();
+            if(error == null && d.sync)
+                ch.force(true);
+            ok = error == null;
+        } finally {
+            ch.close();
+            if(!ok)
+                d.getOutput().delete();
+        }
+        if(error != null)
+            System.out.println(error);
+        return ok;
+    }
 
-        }catch (Exception e){
-            System.err.println("Error: " + e);
+    /* a socket in a batch's pool, and the download that last used it */
+    static final class PooledSocket
+    {
+        final TftpTransport ds;
+        TftpDownload last = null;
+
+        PooledSocket(TftpTransport ds)
+        {
+            this.ds = ds;
         }
     }
+
+    /* a throughput, for printing */
+    static String rate(long bytes, long nanos)
+    {
+        double mbps = nanos > 0 ? bytes * 1000.0 / nanos : 0;
+        return String.format("%.2f MB/s", mbps);
+    }
 }
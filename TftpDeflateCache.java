@@ -0,0 +1,87 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/*
+ * a server-wide cache of files compressed with deflate (zlib format),
+ * for clients that ask for the compress option, so that a popular
+ * file is compressed once rather than once per transfer.  it is a
+ * TftpBlockCache whose entries are the compressed contents, so a file
+ * is still identified by its path, length and modification time, and
+ * concurrent requests for a file being compressed wait for it.
+ *
+ * a file that does not get smaller, or whose compressed form would
+ * not fit in the budget, is cached as an empty buffer, which tells
+ * the transfer to send it as it is without compressing it again.
+ */
+class TftpDeflateCache extends TftpBlockCache
+{
+    /*
+     * the fastest level: on the thread engine, a file is compressed
+     * while its first client waits for the OACK (the nio engine sends
+     * it uncompressed while it is compressed in the background), and
+     * the level barely changes how well text and uncompressed images
+     * compress.
+     */
+    static final int LEVEL = Deflater.BEST_SPEED;
+
+    TftpDeflateCache(long budget)
+    {
+        super(budget);
+    }
+
+    /* a file bigger than the budget may still compress into it */
+    long maxLength()
+    {
+        return Integer.MAX_VALUE;
+    }
+
+    /*
+     * compress the whole file into a new direct buffer, giving up as
+     * soon as the output is as long as the file or the budget.
+     * returns null if the file could not be read.
+     */
+    ByteBuffer load(File file, long length)
+    {
+        long limit = Math.min(length, getBudget());
+        Deflater deflater = new Deflater(LEVEL);
+        try(InputStream in = new FileInputStream(file)) {
+            byte[] chunk = new byte[64 << 10];
+            byte[] out = new byte[(int) Math.min(limit, 64 << 10) + 64];
+            int used = 0;
+            int n;
+            while(true) {
+                if(deflater.needsInput()) {
+                    n = in.read(chunk);
+                    if(n < 0)
+                        deflater.finish();
+                    else
+                        deflater.setInput(chunk, 0, n);
+                }
+                if(used == out.length) {
+                    if(used >= limit)
+                        return ByteBuffer.allocate(0);
+                    byte[] bigger = new byte[(int) Math.min(limit, 2L * out.length)];
+                    System.arraycopy(out, 0, bigger, 0, used);
+                    out = bigger;
+                }
+                used += deflater.deflate(out, used, out.length - used);
+                if(deflater.finished())
+                    break;
+            }
+            if(used >= length)
+                return ByteBuffer.allocate(0);
+            ByteBuffer b = ByteBuffer.allocateDirect(used);
+            b.put(out, 0, used);
+            b.flip();
+            return b.asReadOnlyBuffer();
+        } catch(IOException | OutOfMemoryError e) {
+            return null;
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TftpDeflateCacheTest
+{
+    /* lines of text, which compress well */
+    private static byte[] text(int lines)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < lines; i++) {
+            sb.append("line ").append(i).append(": the quick brown fox\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    private static byte[] inflate(ByteBuffer z) throws DataFormatException
+    {
+        byte[] in = new byte[z.remaining()];
+        z.get(in);
+        Inflater inflater = new Inflater();
+        inflater.setInput(in);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        while(!inflater.finished()) {
+            int n = inflater.inflate(buf);
+            assertTrue(n > 0 || inflater.finished(), "stream cut short");
+            out.write(buf, 0, n);
+        }
+        inflater.end();
+        return out.toByteArray();
+    }
+
+    /*
+     * a file of text is compressed once, to something much smaller
+     * that inflates back to the file; the second request is a hit.
+     */
+    @Test
+    @DisplayName("test compress")
+    void testCompress() throws IOException, DataFormatException
+    {
+        byte[] data = text(10000);
+        File f = TftpTestFiles.holding(data);
+        TftpDeflateCache cache = new TftpDeflateCache(1 << 20);
+
+        ByteBuffer z = cache.get(f);
+        assertNotNull(z);
+        assertTrue(z.remaining() * 3 < data.length, "compressed to " + z.remaining());
+        assertArrayEquals(data, inflate(z));
+
+        assertNotNull(cache.get(f));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    /*
+     * random bytes do not compress, and a file that would compress to
+     * more than the budget is not worth it either; both are remembered
+     * as empty, so they are not compressed again.
+     */
+    @Test
+    @DisplayName("test not worth it")
+    void testNotWorthIt() throws IOException
+    {
+        byte[] noise = new byte[100000];
+        new Random(1).nextBytes(noise);
+        TftpDeflateCache cache = new TftpDeflateCache(1 << 20);
+        File f = TftpTestFiles.holding(noise);
+        assertEquals(0, cache.get(f).capacity());
+        assertEquals(0, cache.get(f).capacity());
+        assertEquals(1, cache.getHits());
+
+        TftpDeflateCache small = new TftpDeflateCache(1000);
+        assertEquals(0, small.get(TftpTestFiles.holding(text(10000))).capacity(), "bigger than the budget");
+        assertEquals(0, small.get(TftpTestFiles.holding(new byte[0])).capacity(), "empty");
+    }
+}
@@ -0,0 +1,80 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * a digest of a file's contents, computed a piece at a time: CRC32C,
+ * which the JVM computes with the processor's own instructions and
+ * costs next to nothing per block, or SHA-256, which is slower but
+ * catches tampering as well as corruption.  the server advertises the
+ * digest of a file in its OACK, and the client computes the same as
+ * the blocks arrive and checks them against each other at the end.
+ */
+class TftpDigest
+{
+    static final String CRC32C = "crc32c";
+    static final String SHA256 = "sha-256";
+
+    /* the algorithms we know, in the order we prefer them */
+    static final String[] ALGORITHMS = { CRC32C, SHA256 };
+
+    final String algorithm;
+    private final java.util.zip.CRC32C crc;
+    private final MessageDigest sha;
+
+    private TftpDigest(String algorithm, java.util.zip.CRC32C crc, MessageDigest sha)
+    {
+        this.algorithm = algorithm;
+        this.crc = crc;
+        this.sha = sha;
+    }
+
+    /* a new digest with the named algorithm, or null if we do not know it */
+    static TftpDigest create(String algorithm)
+    {
+        if(CRC32C.equals(algorithm))
+            return new TftpDigest(CRC32C, new java.util.zip.CRC32C(), null);
+        if(SHA256.equals(algorithm)) {
+            try {
+                return new TftpDigest(SHA256, null, MessageDigest.getInstance("SHA-256"));
+            } catch(NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public void update(byte[] b, int off, int len)
+    {
+        if(crc != null)
+            crc.update(b, off, len);
+        else
+            sha.update(b, off, len);
+    }
+
+    public void update(ByteBuffer b)
+    {
+        if(crc != null)
+            crc.update(b);
+        else
+            sha.update(b);
+    }
+
+    /* the digest of everything so far */
+    public byte[] digest()
+    {
+        if(sha != null)
+            return sha.digest();
+        long v = crc.getValue();
+        return new byte[] { (byte)(v >>> 24), (byte)(v >>> 16), (byte)(v >>> 8), (byte) v };
+    }
+
+    /* a digest as it appears in an option: lower case hex */
+    static String hex(byte[] d)
+    {
+        StringBuilder sb = new StringBuilder(d.length * 2);
+        for(byte b : d)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+}
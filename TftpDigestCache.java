@@ -0,0 +1,88 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * a server-wide cache of the digests of files, with one algorithm,
+ * for clients that ask for the digest option, so that a file is read
+ * and hashed once per version rather than once per transfer.  like
+ * TftpDeflateCache it is a TftpBlockCache, whose entries here are the
+ * digests, so a file is identified by its path, length and
+ * modification time, and one that changes is hashed again.
+ *
+ * hashing a small file takes about as long as the round trip, so a
+ * file up to INLINE_BYTES long is hashed while its first client waits
+ * for the OACK.  a longer one, such as a multi-gigabyte image, would
+ * hold up the first DATA for seconds, so it is hashed in the
+ * background instead, and its transfers go without a digest until it
+ * is done.  so is every file whose caller cannot wait at all, such as
+ * an event loop with other transfers to run.
+ */
+class TftpDigestCache extends TftpBlockCache
+{
+    /* the memory budget of each cache, which is a lot of digests */
+    static final long BUDGET = 1L << 20;
+
+    /* the longest file hashed while its client waits */
+    static final long INLINE_BYTES = 16L << 20;
+
+    final String algorithm;
+
+    TftpDigestCache(String algorithm)
+    {
+        super(BUDGET);
+        this.algorithm = algorithm;
+    }
+
+    /* a file of any length has a digest that fits */
+    long maxLength()
+    {
+        return Long.MAX_VALUE;
+    }
+
+    /*
+     * the digest of the file, as hex, if it is cached or the caller
+     * may wait and the file is short enough to hash now; otherwise
+     * start hashing it in the background and return null.
+     */
+    public String digest(File file, boolean wait)
+    {
+        ByteBuffer b = peek(file);
+        if(b == null && wait && file.length() <= INLINE_BYTES)
+            b = get(file);
+        if(b == null) {
+            background(file);
+            return null;
+        }
+        byte[] d = new byte[b.remaining()];
+        b.get(d);
+        return TftpDigest.hex(d);
+    }
+
+    /*
+     * hash the first length bytes of the file.  returns null if it is
+     * now shorter than that, or could not be read.
+     */
+    ByteBuffer load(File file, long length)
+    {
+        TftpDigest d = TftpDigest.create(algorithm);
+        if(d == null)
+            return null;
+        try(InputStream in = new FileInputStream(file)) {
+            byte[] chunk = new byte[256 << 10];
+            long left = length;
+            while(left > 0) {
+                int n = in.read(chunk, 0, (int) Math.min(chunk.length, left));
+                if(n < 0)
+                    return null;
+                d.update(chunk, 0, n);
+                left -= n;
+            }
+            return ByteBuffer.wrap(d.digest()).asReadOnlyBuffer();
+        } catch(IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TftpDigestCacheTest
+{
+    /*
+     * a small file is hashed straight away, with the standard check
+     * values, and the second request is a hit; a file that changes is
+     * hashed again.
+     */
+    @Test
+    @DisplayName("test digest")
+    void testDigest() throws IOException
+    {
+        File f = TftpTestFiles.holding("123456789".getBytes());
+        TftpDigestCache crc = new TftpDigestCache(TftpDigest.CRC32C);
+        assertEquals("e3069283", crc.digest(f, true));
+        assertEquals("e3069283", crc.digest(f, true));
+        assertEquals(1, crc.getMisses());
+        assertEquals(1, crc.getHits());
+
+        Files.write(f.toPath(), "abc".getBytes());
+        TftpDigestCache sha = new TftpDigestCache(TftpDigest.SHA256);
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                     sha.digest(f, true));
+        assertNotNull(crc.digest(f, true));
+        assertEquals(2, crc.getMisses());
+        assertNull(TftpDigest.create("md5"));
+    }
+
+    /*
+     * a file too long to hash while the client waits has no digest
+     * at first, but does once it has been hashed in the background;
+     * so does a short file when the caller cannot wait.
+     */
+    @Test
+    @DisplayName("test background")
+    void testBackground() throws Exception
+    {
+        File small = TftpTestFiles.holding("123456789".getBytes());
+        TftpDigestCache quick = new TftpDigestCache(TftpDigest.CRC32C);
+        assertNull(quick.digest(small, false));
+        String q = null;
+        for(int i = 0; i < 500 && q == null; i++) {
+            Thread.sleep(10);
+            q = quick.digest(small, false);
+        }
+        assertEquals("e3069283", q);
+
+        File f = TftpTestFiles.holding(new byte[(int) TftpDigestCache.INLINE_BYTES + 1]);
+        TftpDigestCache crc = new TftpDigestCache(TftpDigest.CRC32C);
+        assertNull(crc.digest(f, true));
+        String d = null;
+        for(int i = 0; i < 500 && d == null; i++) {
+            Thread.sleep(10);
+            d = crc.digest(f, true);
+        }
+        TftpDigest expect = TftpDigest.create(TftpDigest.CRC32C);
+        byte[] data = Files.readAllBytes(f.toPath());
+        expect.update(data, 0, data.length);
+        assertEquals(TftpDigest.hex(expect.digest()), d);
+    }
+}
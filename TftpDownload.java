@@ -0,0 +1,943 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/*
+ * one file fetched from a server: the client side of a transfer.  it
+ * runs on a transport (a socket, or a simulated one) the caller owns,
+ * so that a batch of downloads can share a pool of sockets rather
+ * than opening one per file.
+ */
+class TftpDownload
+{
+    /*
+     * however short the retransmission timeout gets, we do not give up
+     * on the server until it has been silent for at least this long,
+     * which is how long we used to wait before giving up.
+     */
+    static final long MIN_GIVE_UP_NANOS = 6000L * 1000000L;
+
+    /*
+     * how long the group of a multicast transfer we are not the
+     * master of must be silent before we take it to be over.
+     */
+    static final int MULTICAST_IDLE_MILLIS = 1000;
+
+    /*
+     * how much DATA to make room for on a group, since we do not know
+     * how big a window its master asked for.
+     */
+    static final int MULTICAST_BUFFER_BYTES = 1 << 20;
+
+    /* what we ask the server for; see TftpClient for the flags */
+    int window = 1;
+    int blksize = TftpPacket.DEFAULT_BLKSIZE;
+    int maxAttempts = 5;
+    boolean sync = false;
+
+    /*
+     * whether to ask the server for the size of the file (tsize).
+     * knowing it, a download that is not a segment or being resumed
+     * writes the file into a mapping of it (see TftpWriter.map).
+     */
+    boolean askSize = false;
+
+    /*
+     * whether to ask for the file compressed.  a segment never does,
+     * since its byte range is of the file as it is on the server.
+     */
+    boolean compress = false;
+
+    /*
+     * whether to ask to share a multicast transfer of the file with
+     * any other clients fetching it, if the server has a group.  a
+     * segment never does.
+     */
+    boolean multicast = false;
+
+    /*
+     * whether to keep a checkpoint beside the output of how much of
+     * the file is safely on disk, and to carry on from one left by an
+     * earlier download of the file that failed.  a segment, or a
+     * multicast download, whose blocks are not written in order, never
+     * does.
+     */
+    boolean resume = false;
+
+    /*
+     * the digest algorithm (see TftpDigest) to ask the server for,
+     * and check the file against, or null.  a segment, or a multicast
+     * download, never does, since it does not see the whole file in
+     * order.
+     */
+    String digest = null;
+
+    private final InetAddress ia;
+    private final int port;
+    private final String filename;
+    private final File output;
+
+    /*
+     * for a segment of a file: the channel shared by all the segments,
+     * and the byte range of the file this one fetches and writes.
+     */
+    private FileChannel channel = null;
+    private long offset = -1;
+    private long length = -1;
+    private long size = -1;
+
+    private String error = null;
+    private volatile boolean cancelled = false;
+    private long bytes = 0;
+    private long nanos = 0;
+
+    /* where the server's replies came from, once we know */
+    private InetAddress serverAddress = null;
+    private int serverPort = -1;
+
+    /*
+     * the multicast group we joined, if the server put us in one, and
+     * if we were not its master, the block size it was sent in and
+     * the byte ranges of the file we missed.
+     */
+    private TftpTransport group = null;
+    private int groupBlksize = 0;
+    private List<long[]> missed = null;
+
+    /*
+     * the checkpoint of a resumable download, and the offset we are
+     * resuming from, or 0.
+     */
+    private TftpCheckpoint checkpoint = null;
+    private long resumeAt = 0;
+
+    /*
+     * the digest of what we have written, if we asked for one, and
+     * the digest the server gave for the file, as "algorithm:hex".
+     */
+    private TftpDigest hash = null;
+    private String expected = null;
+
+    TftpDownload(InetAddress ia, int port, String filename, File output)
+    {
+        this.ia = ia;
+        this.port = port;
+        this.filename = filename;
+        this.output = output;
+    }
+
+    public String getFilename() { return filename; }
+    public File getOutput() { return output; }
+
+    /* the size of the whole file, if we asked and the server said */
+    public long getSize() { return size; }
+
+    /*
+     * the digest the server gave for the file, which the file we
+     * wrote matched, or null if we did not ask.
+     */
+    public String getDigest() { return expected; }
+
+    /*
+     * a download, with the same settings as this one, of length bytes
+     * of the file from offset, written at that offset through ch.
+     */
+    public TftpDownload segment(FileChannel ch, long offset, long length)
+    {
+        TftpDownload d = new TftpDownload(ia, port, filename, output);
+        d.window = window;
+        d.blksize = blksize;
+        d.maxAttempts = maxAttempts;
+        d.channel = ch;
+        d.offset = offset;
+        d.length = length;
+        return d;
+    }
+
+    /*
+     * give up on the download from another thread.  run returns false
+     * the next time a packet arrives or the server is timed out,
+     * having closed the output as usual.
+     */
+    public void cancel() { cancelled = true; }
+
+    /* the server's ERROR message, if it refused the transfer */
+    public String getError() { return error; }
+
+    /* how many bytes we received, and how long it took */
+    public long getBytes() { return bytes; }
+    public long getNanos() { return nanos; }
+
+    public boolean run(TftpTransport ds) throws IOException
+    {
+        return run(ds, null);
+    }
+
+    /*
+     * fetch the file using the socket ds.  if the socket was used for
+     * an earlier download, previous is that download: the server may
+     * still retransmit its last block to us, so we must not take a
+     * packet from there for the first reply to this one.  returns true
+     * if the whole file arrived, or false if the server sent an ERROR;
+     * throws if the server went quiet or the file could not be
+     * written.
+     */
+    public boolean run(TftpTransport ds, TftpDownload previous) throws IOException
+    {
+        long start = System.nanoTime();
+        discardStale(ds);
+        TftpRtt rtt = new TftpRtt(TftpRtt.DEFAULT_MIN_RTO);
+
+        /*
+         * open an output file; preface the filename with "rx-" so
+         * that you do not try to overwrite a file that the server is
+         * about to try to send to you.  blocks are written to it
+         * behind our back by a writer thread, so that we can ACK
+         * each window without waiting for the disk.  a resumable
+         * download carries on from its checkpoint, if it has one, and
+         * asks the server for the rest of the file from there.
+         */
+        if(resume && channel == null && !multicast && checkpoint == null){
+            checkpoint = new TftpCheckpoint(output, filename);
+            resumeAt = checkpoint.resumeAt(blksize);
+            if(resumeAt == 0)
+                checkpoint.delete();
+        }
+        TftpWriter writer = channel != null ? new TftpWriter(channel, offset)
+                          : checkpoint != null ? new TftpWriter(output, sync, resumeAt, checkpoint)
+                          : new TftpWriter(output, sync);
+        boolean complete = false;
+        try {
+            /*
+             * if we are to check the file's digest, start with what we
+             * kept of it, if we are resuming.
+             */
+            expected = null;
+            hash = digest != null && channel == null && !multicast ? TftpDigest.create(digest) : null;
+            if(hash != null && resumeAt > 0)
+                hashPrefix(resumeAt);
+
+            boolean ok = receive(ds, rtt, writer, previous);
+            writer.close();
+            bytes = writer.written();
+            boolean intact = !ok || expected == null ||
+                expected.equals(hash.algorithm + ":" + TftpDigest.hex(hash.digest()));
+
+            /*
+             * if the server would not carry on from where we left
+             * off, or the file has changed since, or what we kept of
+             * it did not match its digest, start again.
+             */
+            if((!ok || !intact) && resumeAt > 0){
+                resumeAt = 0;
+                error = null;
+                checkpoint.delete();
+                return run(ds, this);
+            }
+
+            /*
+             * refuse a file that does not match its digest, or that we
+             * were asked to check but the server gave no digest for.
+             */
+            if(!intact || ok && hash != null && expected == null){
+                error = (intact ? "no digest from the server: " : "digest mismatch: ") + filename;
+                output.delete();
+                if(checkpoint != null)
+                    checkpoint.delete();
+                return false;
+            }
+            /*
+             * a mapped file was made as big as the server said it
+             * was, so that is how much it must have sent.
+             */
+            if(ok && missed == null && writer.mapped() && bytes != size){
+                error = "file is not the size the server gave: " + filename;
+                return false;
+            }
+            if(ok && missed != null)
+                ok = fill(ds);
+            if(ok && checkpoint != null)
+                checkpoint.delete();
+            complete = ok;
+            return ok;
+        } finally {
+            writer.close();
+
+            /*
+             * a mapped file is as long as the whole file from the
+             * start, so one that did not arrive would look as if it
+             * had; do not leave it behind.
+             */
+            if(!complete && writer.mapped())
+                output.delete();
+            if(group != null){
+                group.close();
+                group = null;
+            }
+            nanos = System.nanoTime() - start;
+        }
+    }
+
+    /* add the first length bytes of the output file to the digest */
+    private void hashPrefix(long length) throws IOException
+    {
+        try(InputStream in = new FileInputStream(output)) {
+            byte[] chunk = new byte[256 << 10];
+            while(length > 0) {
+                int n = in.read(chunk, 0, (int) Math.min(chunk.length, length));
+                if(n < 0)
+                    throw new IOException("output shorter than its checkpoint: " + output);
+                hash.update(chunk, 0, n);
+                length -= n;
+            }
+        }
+    }
+
+    /*
+     * fetch by unicast the byte ranges of the file that we missed
+     * while listening to a multicast transfer, as segments written
+     * where they belong in the output file.  their offsets are
+     * multiples of the block size the group was sent in, so they ask
+     * for that.
+     */
+    private boolean fill(TftpTransport ds) throws IOException
+    {
+        if(missed.isEmpty())
+            return true;
+        try(FileChannel ch = FileChannel.open(output.toPath(), StandardOpenOption.WRITE)) {
+            TftpDownload previous = this;
+            for(long[] r : missed) {
+                TftpDownload s = segment(ch, r[0], r[1]);
+                s.blksize = groupBlksize;
+                boolean ok = s.run(ds, previous);
+                bytes += s.getBytes();
+                if(!ok){
+                    error = s.getError();
+                    return false;
+                }
+                previous = s;
+            }
+            if(sync)
+                ch.force(true);
+        }
+        return true;
+    }
+
+    /*
+     * throw away anything still queued on a reused socket, such as a
+     * retransmission from the server of an earlier download.
+     */
+    private static void discardStale(TftpTransport ds) throws IOException
+    {
+        byte[] b = new byte[1];
+        DatagramPacket p = new DatagramPacket(b, b.length);
+        try {
+            while(true)
+                ds.receive(p, 1);
+        } catch(SocketTimeoutException e) {
+            return;
+        }
+    }
+
+    private boolean receive(TftpTransport ds, TftpRtt rtt, TftpWriter writer,
+                            TftpDownload previous) throws IOException
+    {
+        /* ###
+         * create a read request using TftpPacket.createRRQ and then
+         * send the packet over the transport.  if we want a
+         * window, ask for it as an option, along with wide block
+         * numbers, so that no block in a large window (or a stale ACK
+         * from an earlier one) can be mistaken for another, and
+         * selective ACKs, so that a lost block costs only itself.
+         * a multicast transfer needs wide block numbers too, so that a
+         * client joining it part way through knows where each block
+         * goes.
+         */
+        Map<String,String> options = new LinkedHashMap<String,String>();
+        if(window > 1){
+            options.put(TftpPacket.OPT_WINDOWSIZE, Integer.toString(window));
+            options.put(TftpPacket.OPT_WIDEBLOCKS, "1");
+            options.put(TftpPacket.OPT_SACK, "1");
+        }
+        if(blksize != TftpPacket.DEFAULT_BLKSIZE)
+            options.put(TftpPacket.OPT_BLKSIZE, Integer.toString(blksize));
+        if(askSize || checkpoint != null)
+            options.put(TftpPacket.OPT_TSIZE, "0");
+        if(checkpoint != null)
+            options.put(TftpPacket.OPT_MTIME, "0");
+        if(hash != null)
+            options.put(TftpPacket.OPT_DIGEST, hash.algorithm);
+        if(channel != null){
+            options.put(TftpPacket.OPT_OFFSET, Long.toString(offset));
+            options.put(TftpPacket.OPT_LENGTH, Long.toString(length));
+        } else if(resumeAt > 0){
+            options.put(TftpPacket.OPT_OFFSET, Long.toString(resumeAt));
+        } else if(compress){
+            options.put(TftpPacket.OPT_COMPRESS, TftpPacket.COMPRESS_DEFLATE);
+        }
+        if(multicast && channel == null){
+            options.put(TftpPacket.OPT_WIDEBLOCKS, "1");
+            options.put(TftpPacket.OPT_MULTICAST, "");
+        }
+        DatagramPacket dpRRQ = TftpPacket.createRRQ(ia, port, filename, options);
+        ds.send(dpRRQ);
+        long sentAt = System.nanoTime();
+        long lastHeard = sentAt;
+        boolean timing = true;
+
+        /*
+         * until the server agrees to our options in its OACK, we
+         * acknowledge every block, as in stop-and-wait, and expect
+         * 512 byte blocks with one byte block numbers.
+         */
+        int agreedWindow = 1;
+        int agreedBlksize = TftpPacket.DEFAULT_BLKSIZE;
+        boolean agreedWide = false;
+
+        /* set if the server is sending the file compressed */
+        Inflater inflater = null;
+        byte[] inflated = null;
+
+        /*
+         * blocks that arrived after a gap, if we agreed to selective
+         * ACKs.  the server then times its retransmissions from our
+         * ACKs, so we send one every quarter window rather than once a
+         * window, which gives it a round trip sample, and room for more
+         * blocks, four times as often.
+         */
+        Held held = null;
+        int ackEvery = 1;
+
+        /*
+         * declare a counter of the blocks that we have received in
+         * order, so the block we expect next is one more than it.
+         * allocate a byte buffer big enough for the block size we
+         * asked for plus the longest DATA header, to receive
+         * DATA packets.  allocate a DatagramPacket backed by that
+         * byte buffer to pass to the transport's receive to receive
+         * packets into.
+         */
+        long received = 0;
+        byte[] buffer = new byte[Math.max(blksize, TftpPacket.DEFAULT_BLKSIZE) +
+                                 TftpPacket.headerLength(true)];
+
+        /*
+         * make sure the socket can hold a whole window of large
+         * blocks, or the kernel drops the tail of each window.
+         */
+        ds.setReceiveBufferSize(window * buffer.length);
+        DatagramPacket receiveData = new DatagramPacket(buffer, buffer.length);
+
+        /*
+         * the server replies from a new port, which we learn from
+         * its first reply and use for the rest of the transfer.
+         * keep the last packet we sent, so we can send it again if
+         * the server goes quiet.
+         */
+        InetAddress dst = null;
+        int tpPort = -1;
+        DatagramPacket lastSent = dpRRQ;
+
+        /*
+         * look at each packet through a reusable view, and encode
+         * each ACK into one reusable packet, so that the steady
+         * state of the transfer allocates nothing per block.
+         */
+        TftpPacket.View view = new TftpPacket.View();
+        byte[] ackBuf = new byte[5 + (window + 7) / 8];
+        DatagramPacket ackPacket = new DatagramPacket(ackBuf, ackBuf.length);
+        int sinceAck = 0;
+        boolean gapAcked = false;
+        int attempts = 0;
+
+        /* where DATA arrives: the transport, or a multicast group */
+        TftpTransport in = ds;
+
+        /*
+         * an infinite loop that we will eventually break out of, when
+         * either an exception occurs, or we receive a block smaller
+         * than the agreed block size.
+         */
+        while (true){
+            if(cancelled){
+                error = "cancelled: " + filename;
+                return false;
+            }
+
+            /*
+             * receive a packet on the transport.  if the server
+             * has gone quiet, back off the timeout and send our last
+             * packet again.  give up after maxAttempts timeouts, once
+             * the server has been silent for long enough.  a packet we
+             * resend can no longer be timed (Karn's rule).
+             */
+            try {
+                in.receive(receiveData, (int)Math.max(1, rtt.rto() / 1000000));
+            } catch(SocketTimeoutException e) {
+                if(++attempts >= maxAttempts &&
+                   System.nanoTime() - lastHeard >= MIN_GIVE_UP_NANOS)
+                    throw e;
+                rtt.backoff();
+                ds.send(lastSent);
+                timing = false;
+                continue;
+            }
+
+            /*
+             * look at it through the view.  if we could not decode the
+             * packet (getType returns null), then use "continue" to
+             * loop again without executing the remaining code in the
+             * loop.
+             */
+            TftpPacket.Type type = view.wrap(receiveData).getType();
+            if(type == null){
+                continue;
+            }
+
+            /*
+             * get the IP address and port where the packet came from.
+             * The port will be different to the port you sent the RRQ
+             * to, and we will use these values to transmit the ACK to.
+             * ignore packets from anywhere else once we know where the
+             * server is, and anything from the server of the previous
+             * download on this socket before we know.
+             */
+            if(dst == null){
+                if(previous != null && previous.serverPort == receiveData.getPort() &&
+                   receiveData.getAddress().equals(previous.serverAddress))
+                    continue;
+                dst = receiveData.getAddress();
+                tpPort = receiveData.getPort();
+                serverAddress = dst;
+                serverPort = tpPort;
+                ackPacket.setAddress(dst);
+                ackPacket.setPort(tpPort);
+            } else if(tpPort != receiveData.getPort() || !dst.equals(receiveData.getAddress())){
+                continue;
+            }
+
+            /*
+             * the server has answered; if the packet we last sent was
+             * only sent once, time the round trip.
+             */
+            long now = System.nanoTime();
+            if(timing){
+                rtt.sample(now - sentAt);
+                timing = false;
+            }
+            lastHeard = now;
+            attempts = 0;
+
+            /*
+             * if the response is an ERROR packet, then remember the
+             * error message and return.
+             */
+            if(type == TftpPacket.Type.ERROR){
+                error = TftpPacket.parse(receiveData).getError();
+                return false;
+            }
+
+            /*
+             * if the response is an OACK, the server has agreed to
+             * (some of) our options.  acknowledge it with block zero
+             * to start the transfer.
+             */
+            if(type == TftpPacket.Type.OACK){
+                TftpPacket tp = TftpPacket.parse(receiveData);
+                if(tp != null && received == 0){
+                    String ws = tp.getOptions().get(TftpPacket.OPT_WINDOWSIZE);
+                    if(ws != null)
+                        agreedWindow = Math.max(1, Math.min(window, Integer.parseInt(ws)));
+                    String bs = tp.getOptions().get(TftpPacket.OPT_BLKSIZE);
+                    if(bs != null)
+                        agreedBlksize = Math.max(TftpPacket.MIN_BLKSIZE,
+                                                 Math.min(blksize, Integer.parseInt(bs)));
+                    agreedWide = "1".equals(tp.getOptions().get(TftpPacket.OPT_WIDEBLOCKS));
+                    if(compress && inflater == null &&
+                       TftpPacket.COMPRESS_DEFLATE.equals(tp.getOptions().get(TftpPacket.OPT_COMPRESS))){
+                        inflater = new Inflater();
+                        inflated = new byte[64 << 10];
+                    }
+                    String ts = tp.getOptions().get(TftpPacket.OPT_TSIZE);
+                    if(ts != null)
+                        size = Long.parseLong(ts);
+
+                    /*
+                     * knowing the file's size, write it into a mapping
+                     * of it.  a block that arrives after a gap can
+                     * then go straight where it belongs, rather than
+                     * being held.  a file sent compressed is not
+                     * mapped, since its blocks can only be inflated
+                     * in order.
+                     */
+                    boolean placing = size >= 0 && channel == null && checkpoint == null &&
+                                      inflater == null && writer.map(size, agreedBlksize);
+                    if(agreedWide && agreedWindow > 1 && held == null &&
+                       "1".equals(tp.getOptions().get(TftpPacket.OPT_SACK)))
+                        held = new Held(agreedWindow, agreedBlksize, !placing);
+                    ackEvery = held != null ? Math.max(1, agreedWindow / 4) : agreedWindow;
+
+                    /*
+                     * a segment is written at the offset we asked for,
+                     * beside the segments on either side of it, so the
+                     * server must have agreed to exactly that range.
+                     */
+                    String off = tp.getOptions().get(TftpPacket.OPT_OFFSET);
+                    String len = tp.getOptions().get(TftpPacket.OPT_LENGTH);
+                    if(channel != null && (off == null || Long.parseLong(off) != offset ||
+                                           len == null || Long.parseLong(len) != length)){
+                        error = "server does not support byte ranges";
+                        return false;
+                    }
+
+                    /*
+                     * so is the rest of a file we are resuming, which
+                     * must also be the same size as when we started,
+                     * and not have been modified since.
+                     */
+                    String mt = tp.getOptions().get(TftpPacket.OPT_MTIME);
+                    long mtime = mt != null ? Long.parseLong(mt.trim()) : -1;
+                    if(resumeAt > 0 && (off == null || Long.parseLong(off) != resumeAt ||
+                                        size != checkpoint.size() ||
+                                        mtime != checkpoint.mtime())){
+                        error = "cannot resume " + filename;
+                        return false;
+                    }
+                    if(checkpoint != null){
+                        checkpoint.setSize(size);
+                        checkpoint.setMtime(mtime);
+                    }
+                    if(hash != null)
+                        expected = tp.getOptions().get(TftpPacket.OPT_DIGEST);
+
+                    /*
+                     * if the server put us in a multicast transfer,
+                     * DATA comes to its group from now on.  as its
+                     * master we ACK as usual; otherwise we only
+                     * collect what we can from the group.
+                     */
+                    String mc = tp.getOptions().get(TftpPacket.OPT_MULTICAST);
+                    if(multicast && mc != null){
+                        String[] m = mc.split(",");
+                        if(m.length != 3 || !agreedWide || size < 0){
+                            error = "bad multicast option from server: " + mc;
+                            return false;
+                        }
+                        group = ds.join(new InetSocketAddress(InetAddress.getByName(m[0].trim()),
+                                                              Integer.parseInt(m[1].trim())), ia);
+                        group.setReceiveBufferSize(Math.max(window * buffer.length,
+                                                            MULTICAST_BUFFER_BYTES));
+                        in = group;
+                        if(!m[2].trim().equals("1"))
+                            return collect(group, agreedBlksize,
+                                           new InetSocketAddress(dst, tpPort), writer);
+                    }
+                    ackPacket.setLength(TftpPacket.encodeACK(ackBuf, 0, 0, agreedWide));
+                    lastSent = ackPacket;
+                    ds.send(lastSent);
+                    sentAt = System.nanoTime();
+                    timing = true;
+                }
+                continue;
+            }
+
+            /*
+             * if the packet is not a DATA packet (with the width of
+             * block number we agreed on), then use "continue" to loop
+             * again without executing the remaining code in
+             * the loop.
+             */
+            if(type != TftpPacket.Type.DATA || view.isWide() != agreedWide){
+                continue;
+            }
+
+            /*
+             * DATA without an OACK first means the server ignored our
+             * options, so it is sending the whole file from the start.
+             */
+            if((channel != null || resumeAt > 0) && received == 0 && lastSent == dpRRQ){
+                error = "server does not support byte ranges";
+                return false;
+            }
+
+            /*
+             * if the block number is exactly the block that we were
+             * expecting, then hand the data straight out of the
+             * receive buffer to the writer, which copies it and writes
+             * it to disk in the background, while we carry on
+             * receiving, followed by any blocks held back waiting for
+             * it.  acknowledge it if it completes a window (or a
+             * quarter of one, with selective ACKs), or if it
+             * is the last block, which we infer from it being smaller
+             * than the agreed block size.
+             * the ACK covers every block received so far.
+             */
+            long ahead = Math.floorMod(view.getBlock() - TftpPacket.wireBlock(received + 1, agreedWide),
+                                       agreedWide ? TftpPacket.MAX_WIDE_BLOCK : 255);
+            if(ahead == 0){
+                int length = view.getDataLength();
+                boolean last = length < agreedBlksize;
+                deliver(buffer, view.getDataOffset(), length, last, writer, inflater, inflated);
+                received++;
+                sinceAck++;
+                gapAcked = false;
+                while(!last && held != null && held.has(received + 1)) {
+                    long n = received + 1;
+                    length = held.length(n);
+                    last = length < agreedBlksize;
+                    if(held.data != null)
+                        deliver(held.data, held.offset(n), length, last, writer, inflater, inflated);
+                    else
+                        placed(writer, length);
+                    held.remove(n);
+                    received++;
+                    sinceAck++;
+                }
+
+                if(sinceAck >= ackEvery || last){
+                    ackPacket.setLength(encodeAck(ackBuf, received, agreedWide, held));
+                    lastSent = ackPacket;
+                    ds.send(lastSent);
+                    sentAt = System.nanoTime();
+                    timing = true;
+                    sinceAck = 0;
+                }
+                if(last){
+                    return true;
+                }
+            }
+            /*
+             * with selective ACKs, a block from further on in the
+             * window is held until the blocks before it arrive.  if it
+             * opens a new gap, tell the server straight away which
+             * blocks we have, so it can resend just the missing ones;
+             * otherwise keep acknowledging as usual.
+             */
+            else if(held != null && ahead < agreedWindow){
+                long n = received + 1 + ahead;
+                boolean gap = n > Math.max(received, held.highest()) + 1;
+                if(!held.has(n)){
+                    if(held.data == null)
+                        writer.place((n - 1) * agreedBlksize, buffer, view.getDataOffset(),
+                                     view.getDataLength());
+                    held.put(n, buffer, view.getDataOffset(), view.getDataLength());
+                }
+                if(gap || ++sinceAck >= ackEvery){
+                    ackPacket.setLength(encodeAck(ackBuf, received, agreedWide, held));
+                    lastSent = ackPacket;
+                    ds.send(lastSent);
+                    sentAt = System.nanoTime();
+                    timing = true;
+                    sinceAck = 0;
+                }
+            }
+            /*
+             * else, we got a block out of order: either a block we
+             * already have, because the server didn't receive our ACK
+             * and retransmitted, or a block after a gap.  either way,
+             * ack the last block we received in order, once, so the
+             * server knows where to resume from.
+             */
+            else if(!gapAcked){
+                ackPacket.setLength(encodeAck(ackBuf, received, agreedWide, held));
+                lastSent = ackPacket;
+                ds.send(lastSent);
+                sentAt = System.nanoTime();
+                timing = true;
+                sinceAck = 0;
+                gapAcked = agreedWindow > 1;
+            }
+        }
+    }
+
+    /*
+     * collect the blocks of a multicast transfer we are not the
+     * master of from its group, as they come by, writing each one
+     * where it belongs, until we have them all or the group has been
+     * silent for MULTICAST_IDLE_MILLIS.  then note the byte ranges we
+     * missed, for run to fetch.  the file has size bytes, sent as size
+     * / blksize + 1 blocks, the last of them short, from server.
+     */
+    private boolean collect(TftpTransport group, int blksize, InetSocketAddress server,
+                            TftpWriter writer) throws IOException
+    {
+        long blocks = size / blksize + 1;
+        BitSet have = new BitSet();
+        byte[] buffer = new byte[blksize + TftpPacket.headerLength(true)];
+        DatagramPacket p = new DatagramPacket(buffer, buffer.length);
+        TftpPacket.View view = new TftpPacket.View();
+        long count = 0;
+        while(count < blocks) {
+            try {
+                group.receive(p, MULTICAST_IDLE_MILLIS);
+            } catch(SocketTimeoutException e) {
+                break;
+            }
+            if(view.wrap(p).getType() != TftpPacket.Type.DATA || !view.isWide() ||
+               !server.equals(p.getSocketAddress()))
+                continue;
+            long n = view.getBlock();
+            int length = view.getDataLength();
+            if(n < 1 || n > blocks || have.get((int)(n - 1)) ||
+               length != (n < blocks ? blksize : size - (blocks - 1) * blksize))
+                continue;
+            writer.writeAt((n - 1) * blksize, buffer, view.getDataOffset(), length);
+            have.set((int)(n - 1));
+            count++;
+        }
+
+        groupBlksize = blksize;
+        missed = new ArrayList<long[]>();
+        for(int i = have.nextClearBit(0); i < blocks; i = have.nextClearBit(i)) {
+            int j = have.nextSetBit(i);
+            if(j < 0 || j > blocks)
+                j = (int) blocks;
+            long from = i * (long) blksize;
+            long to = Math.min(size, j * (long) blksize);
+            if(to > from)
+                missed.add(new long[] { from, to - from });
+            i = j;
+        }
+        return true;
+    }
+
+    /*
+     * an ACK of every block up to and including block received, or if
+     * we are holding blocks after a gap, a SACK that also says which
+     * ones they are.  returns its length.
+     */
+    private static int encodeAck(byte[] buf, long received, boolean wide, Held held)
+    {
+        long cum = TftpPacket.wireBlock(received, wide);
+        if(held == null || held.highest() <= received)
+            return TftpPacket.encodeACK(buf, 0, cum, wide);
+        int bits = (int)(held.highest() - received);
+        int len = TftpPacket.encodeSACK(buf, 0, cum, bits);
+        for(int i = 0; i < bits; i++) {
+            if(held.has(received + 1 + i))
+                TftpPacket.setSACKBit(buf, 0, i);
+        }
+        return len;
+    }
+
+    /* hand a block, in order, to the writer, inflating it if need be */
+    private void deliver(byte[] b, int off, int len, boolean last, TftpWriter writer,
+                         Inflater inflater, byte[] inflated) throws IOException
+    {
+        if(inflater != null)
+            inflate(inflater, b, off, len, inflated, writer, last);
+        else
+            write(writer, b, off, len);
+    }
+
+    /* write part of the file, adding it to the digest if we are checking one */
+    private void write(TftpWriter writer, byte[] b, int off, int len) throws IOException
+    {
+        writer.write(b, off, len);
+        if(hash != null)
+            hash.update(b, off, len);
+    }
+
+    /*
+     * count a block that was placed in the mapped file when it arrived
+     * as written, now that the blocks before it have been, adding it
+     * to the digest if we are checking one.
+     */
+    private void placed(TftpWriter writer, int len) throws IOException
+    {
+        ByteBuffer b = writer.placed(len);
+        if(hash != null)
+            hash.update(b);
+    }
+
+    /*
+     * inflate a block of a compressed file, handing what comes out to
+     * the writer.  the inflater reads the block in place, so it must
+     * take all of it before we receive the next one.  the stream must
+     * end with the final block, with nothing after it.
+     */
+    private void inflate(Inflater inflater, byte[] b, int off, int len, byte[] out,
+                         TftpWriter writer, boolean last) throws IOException
+    {
+        try {
+            inflater.setInput(b, off, len);
+            int n;
+            while((n = inflater.inflate(out)) > 0)
+                write(writer, out, 0, n);
+            if(inflater.needsDictionary() || (last && !inflater.finished()) ||
+               (inflater.finished() && inflater.getRemaining() > 0))
+                throw new IOException("bad compressed data from server: " + filename);
+        } catch(DataFormatException e) {
+            throw new IOException("bad compressed data from server: " + filename + ": " + e.getMessage());
+        } finally {
+            if(last)
+                inflater.end();
+        }
+    }
+
+    /*
+     * blocks that arrived after a gap, held until the gap is filled.
+     * none is more than a window ahead of the last block received in
+     * order, so a ring of a window of blocks holds them all, each in
+     * the slot its block number picks.  blocks that were placed in a
+     * mapped file as they arrived are only noted, and data is null.
+     */
+    private static final class Held
+    {
+        final byte[] data;
+        private final int blksize;
+        private final long[] blocks;
+        private final int[] lengths;
+        private long highest = 0;
+
+        Held(int window, int blksize, boolean copy)
+        {
+            this.data = copy ? new byte[window * blksize] : null;
+            this.blksize = blksize;
+            this.blocks = new long[window];
+            this.lengths = new int[window];
+        }
+
+        private int slot(long n) { return (int)(n % blocks.length); }
+
+        boolean has(long n) { return blocks[slot(n)] == n; }
+        int offset(long n) { return slot(n) * blksize; }
+        int length(long n) { return lengths[slot(n)]; }
+
+        /* the highest block held since the last gap was filled, or 0 */
+        long highest() { return highest; }
+
+        void put(long n, byte[] b, int off, int len)
+        {
+            int s = slot(n);
+            if(data != null)
+                System.arraycopy(b, off, data, s * blksize, len);
+            blocks[s] = n;
+            lengths[s] = len;
+            if(n > highest)
+                highest = n;
+        }
+
+        void remove(long n)
+        {
+            blocks[slot(n)] = 0;
+            if(n == highest)
+                highest = 0;
+        }
+    }
+}
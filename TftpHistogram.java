@@ -0,0 +1,96 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * a histogram of non-negative values, such as round trip times,
+ * recorded from many threads at once.
+ *
+ * buckets are laid out the way HdrHistogram lays them out: each power
+ * of two range is split into SUB_BUCKETS equal buckets, so every
+ * value is counted to within 1/SUB_BUCKETS of itself whatever its
+ * magnitude, and finding a value's bucket is a couple of shifts.
+ * recording is an increment of one AtomicLongArray element, so
+ * threads contend only when they record values in the same bucket.
+ */
+class TftpHistogram
+{
+    /* the buckets each power of two is split into, as a power of two */
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /*
+     * the bucket a value falls in.  values below SUB_BUCKETS each have
+     * a bucket of their own; above that, the top SUB_BUCKET_BITS + 1
+     * bits of the value pick the bucket within its power of two.
+     */
+    static int index(long v)
+    {
+        if(v < SUB_BUCKETS)
+            return (int) Math.max(0, v);
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int)((v >>> shift) - SUB_BUCKETS);
+    }
+
+    /* the largest value that falls in bucket i */
+    static long highest(int i)
+    {
+        if(i < SUB_BUCKETS)
+            return i;
+        int shift = i / SUB_BUCKETS - 1;
+        long lowest = ((long)(i % SUB_BUCKETS) + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public void record(long v)
+    {
+        counts.incrementAndGet(index(v));
+        count.increment();
+        sum.add(v);
+    }
+
+    public long count() { return count.sum(); }
+    public long sum() { return sum.sum(); }
+
+    public long mean()
+    {
+        long n = count();
+        return n > 0 ? sum() / n : 0;
+    }
+
+    /*
+     * the value that p (from 0 to 1) of the recorded values are no
+     * greater than, to within the precision of the buckets, or 0 if
+     * nothing has been recorded.  concurrent recording may make the
+     * answer a little stale, but never wrong by more than that.
+     */
+    public long percentile(double p)
+    {
+        long n = 0;
+        for(int i = 0; i < counts.length(); i++)
+            n += counts.get(i);
+        if(n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for(int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if(seen >= rank)
+                return highest(i);
+        }
+        return highest(counts.length() - 1);
+    }
+
+    public long max() { return percentile(1.0); }
+
+    /* count, mean and percentiles, with values divided by scale */
+    public String summary(long scale)
+    {
+        return "n " + count() + " mean " + mean() / scale +
+            " p50 " + percentile(0.5) / scale + " p90 " + percentile(0.9) / scale +
+            " p99 " + percentile(0.99) / scale + " max " + max() / scale;
+    }
+}
@@ -0,0 +1,47 @@
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TftpHistogramTest
+{
+    /*
+     * every value falls in a bucket whose upper bound is no smaller
+     * than the value, and no more than 1/SUB_BUCKETS bigger; buckets
+     * follow each other with no gaps.
+     */
+    @Test
+    @DisplayName("test buckets")
+    void testBuckets() {
+        long[] values = { 0, 1, 31, 32, 33, 63, 64, 65, 1000, 123456789, Long.MAX_VALUE };
+        for(long v : values) {
+            long hi = TftpHistogram.highest(TftpHistogram.index(v));
+            assertTrue(hi >= v, "bucket of " + v + " ends at " + hi);
+            assertTrue(hi - v <= v / TftpHistogram.SUB_BUCKETS, "bucket of " + v + " ends at " + hi);
+        }
+        for(int i = 0; i < TftpHistogram.index(Long.MAX_VALUE); i++) {
+            assertEquals(i + 1, TftpHistogram.index(TftpHistogram.highest(i) + 1));
+        }
+    }
+
+    /*
+     * percentiles of 1..1000 are within a bucket's precision of the
+     * exact answer; an empty histogram reports zero.
+     */
+    @Test
+    @DisplayName("test percentiles")
+    void testPercentiles() {
+        TftpHistogram h = new TftpHistogram();
+        assertEquals(0, h.percentile(0.5));
+        for(long v = 1; v <= 1000; v++) {
+            h.record(v);
+        }
+        assertEquals(1000, h.count());
+        assertEquals(500, h.mean());
+        long p50 = h.percentile(0.5);
+        assertTrue(p50 >= 500 && p50 <= 500 + 500 / 32, "p50 " + p50);
+        long p99 = h.percentile(0.99);
+        assertTrue(p99 >= 990 && p99 <= 990 + 990 / 32, "p99 " + p99);
+        assertTrue(h.max() >= 1000 && h.max() <= 1000 + 1000 / 32, "max " + h.max());
+    }
+}
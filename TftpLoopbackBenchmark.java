@@ -0,0 +1,182 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * JMH benchmarks of whole transfers over loopback: a server (either
+ * engine) and a client in the same JVM, fetching a file from 1KB to
+ * 1GB.  the score is transfers per second; the bytes counter is bytes
+ * per second, so bytes / 1000000 is MB/s.
+ *
+ * build against jmh-core with jmh-generator-annprocess on the
+ * annotation processor path, then run
+ *
+ *     java TftpLoopbackBenchmark [results.json] [name=value...]
+ *
+ * which writes the results as JSON for comparison between versions.
+ * each name=value overrides a parameter, such as size=1m or window=1.
+ * the defaults use a window and ethernet-sized blocks, since
+ * stop-and-wait runs of the larger files take minutes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class TftpLoopbackBenchmark
+{
+    @Param({"1k", "1m", "64m", "1g"})
+    public String size;
+
+    @Param({"thread", "nio"})
+    public String engine;
+
+    @Param({"32"})
+    public int window;
+
+    @Param({"1468"})
+    public int blksize;
+
+    private File dir;
+    private File file;
+    private File output;
+    private TftpTransport serverSocket;
+    private DatagramChannel serverChannel;
+    private int port;
+    private TftpTransport ds;
+    private TftpDownload previous = null;
+
+    /* bytes received, reported by JMH as a rate */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes
+    {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void clear()
+        {
+            bytes = 0;
+        }
+    }
+
+    /*
+     * write a file of the size being tested, and start a server on
+     * loopback to serve it, on daemon threads that stop when its
+     * socket is closed.
+     */
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        dir = Files.createTempDirectory("tftpbench").toFile();
+        file = new File(dir, "file-" + size);
+        output = new File(dir, "rx-" + size);
+        long n = TftpServerConfig.parseSize(size);
+        byte[] chunk = new byte[1 << 20];
+        new Random(n).nextBytes(chunk);
+        try(FileOutputStream fos = new FileOutputStream(file)) {
+            for(long left = n; left > 0; left -= chunk.length)
+                fos.write(chunk, 0, (int) Math.min(left, chunk.length));
+        }
+
+        TftpServerConfig config = TftpServerConfig.parse(new String[] {"-engine", engine});
+        InetAddress lo = InetAddress.getLoopbackAddress();
+        Thread t;
+        if(engine.equals("nio")) {
+            serverChannel = DatagramChannel.open();
+            serverChannel.bind(new InetSocketAddress(lo, 0));
+            port = serverChannel.socket().getLocalPort();
+            final TftpNioServer server = new TftpNioServer(serverChannel, config);
+            t = new Thread(() -> {
+                try {
+                    server.run();
+                } catch(IOException e) {
+                    /* the channel was closed by tearDown */
+                }
+            }, "TftpNioServer");
+        } else {
+            serverSocket = new TftpUdpTransport(new InetSocketAddress(lo, 0));
+            port = serverSocket.getLocalPort();
+            t = new Thread(() -> {
+                try {
+                    TftpServer.serve(serverSocket, config);
+                } catch(IOException e) {
+                    /* the socket was closed by tearDown */
+                }
+            }, "TftpServer");
+        }
+        t.setDaemon(true);
+        t.start();
+        ds = new TftpUdpTransport();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        ds.close();
+        if(serverSocket != null)
+            serverSocket.close();
+        if(serverChannel != null)
+            serverChannel.close();
+        file.delete();
+        output.delete();
+        dir.delete();
+    }
+
+    /* fetch the whole file once */
+    @Benchmark
+    public void transfer(Bytes counter) throws IOException
+    {
+        TftpDownload d = new TftpDownload(InetAddress.getLoopbackAddress(), port,
+                                          file.getAbsolutePath(), output);
+        d.window = window;
+        d.blksize = blksize;
+        if(!d.run(ds, previous))
+            throw new IOException(d.getError());
+        previous = d;
+        counter.bytes += d.getBytes();
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        String result = "jmh-loopback.json";
+        ChainedOptionsBuilder opts = new OptionsBuilder()
+            .include(TftpLoopbackBenchmark.class.getSimpleName())
+            .resultFormat(ResultFormatType.JSON);
+        for(String arg : args) {
+            int eq = arg.indexOf('=');
+            if(eq > 0)
+                opts.param(arg.substring(0, eq), arg.substring(eq + 1).split(","));
+            else
+                result = arg;
+        }
+        new Runner(opts.result(result).build()).run();
+    }
+}
@@ -0,0 +1,203 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * the server's live counters: how many transfers have started, ended
+ * and are running, how much they have sent and resent, how often they
+ * timed out, their round trip times, how long transfers of files of
+ * each size took to complete, and how many packets the listener threw
+ * away, as resent requests or as not requests at all.
+ *
+ * every transfer on every engine updates the same counters, so they
+ * are LongAdders, which spread concurrent updates over cells of their
+ * own rather than having every thread fight over one word; the cost
+ * is paid by whoever reads them, which is rare.
+ *
+ * the counters are published through JMX (see TftpMetricsMBean) and
+ * as plain text by TftpMetricsEndpoint.
+ */
+class TftpMetrics implements TftpMetricsMBean
+{
+    /* the upper bounds of the file size buckets, and their names */
+    static final long[] SIZE_BUCKETS = { 64L << 10, 1L << 20, 16L << 20, 256L << 20, Long.MAX_VALUE };
+    static final String[] SIZE_NAMES = { "64k", "1m", "16m", "256m", "inf" };
+
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder packets = new LongAdder();
+    private final LongAdder blocks = new LongAdder();
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder strays = new LongAdder();
+
+    /* in nanoseconds */
+    private final TftpHistogram rtt = new TftpHistogram();
+    private final TftpHistogram[] completion = new TftpHistogram[SIZE_BUCKETS.length];
+
+    /* guarded by this: the last sample of bytes sent, for the rate */
+    private long sampledAt = System.nanoTime();
+    private long sampledBytes = 0;
+    private long rate = 0;
+
+    TftpMetrics()
+    {
+        for(int i = 0; i < completion.length; i++)
+            completion[i] = new TftpHistogram();
+    }
+
+    /* called by transfers as things happen */
+
+    void transferStarted() { started.increment(); }
+    void transferAborted() { aborted.increment(); }
+    void packetSent() { packets.increment(); }
+    void retransmitted() { packets.increment(); retransmits.increment(); }
+    void timedOut() { timeouts.increment(); }
+    void rttSample(long nanos) { rtt.record(nanos); }
+
+    /* called by the listener */
+
+    void duplicateRequest() { duplicates.increment(); }
+    void strayPacket() { strays.increment(); }
+
+    void blockSent(int length)
+    {
+        packets.increment();
+        blocks.increment();
+        bytes.add(length);
+    }
+
+    void transferCompleted(long size, long nanos)
+    {
+        completed.increment();
+        completion[sizeBucket(size)].record(nanos);
+    }
+
+    static int sizeBucket(long size)
+    {
+        int i = 0;
+        while(size > SIZE_BUCKETS[i])
+            i++;
+        return i;
+    }
+
+    /* TftpMetricsMBean */
+
+    public long getTransfersStarted() { return started.sum(); }
+    public long getTransfersCompleted() { return completed.sum(); }
+    public long getTransfersAborted() { return aborted.sum(); }
+    public long getBytesSent() { return bytes.sum(); }
+    public long getPacketsSent() { return packets.sum(); }
+    public long getBlocksSent() { return blocks.sum(); }
+    public long getRetransmits() { return retransmits.sum(); }
+    public long getTimeouts() { return timeouts.sum(); }
+    public long getDuplicateRequests() { return duplicates.sum(); }
+    public long getStrayPackets() { return strays.sum(); }
+
+    public long getActiveTransfers()
+    {
+        return Math.max(0, started.sum() - completed.sum() - aborted.sum());
+    }
+
+    public double getRetransmitsPerBlock()
+    {
+        long b = blocks.sum();
+        return b > 0 ? (double) retransmits.sum() / b : 0;
+    }
+
+    /*
+     * bytes sent per second, over the time since the rate was last
+     * worked out, if that was at least a second ago.
+     */
+    public synchronized long getBytesPerSecond()
+    {
+        long now = System.nanoTime();
+        if(now - sampledAt >= 1000000000L) {
+            long b = bytes.sum();
+            rate = (long)((b - sampledBytes) * 1e9 / (now - sampledAt));
+            sampledAt = now;
+            sampledBytes = b;
+        }
+        return rate;
+    }
+
+    public long getRttMeanMicros() { return rtt.mean() / 1000; }
+    public long getRttP50Micros() { return rtt.percentile(0.5) / 1000; }
+    public long getRttP99Micros() { return rtt.percentile(0.99) / 1000; }
+    public long getRttMaxMicros() { return rtt.max() / 1000; }
+
+    public String[] getCompletionTimes()
+    {
+        String[] lines = new String[completion.length];
+        for(int i = 0; i < completion.length; i++)
+            lines[i] = "size <= " + SIZE_NAMES[i] + ": " + completion[i].summary(1000000);
+        return lines;
+    }
+
+    /* a one line summary, for -stats */
+    public String toString()
+    {
+        return "transfers " + getActiveTransfers() + " active " + getTransfersCompleted() +
+            " completed " + getTransfersAborted() + " aborted, " + getBytesPerSecond() +
+            " bytes/s, " + getRetransmits() + " retransmits " + getTimeouts() + " timeouts, rtt us " +
+            rtt.summary(1000);
+    }
+
+    /*
+     * the counters in the Prometheus text format, so that any scraper
+     * that speaks it can collect them.
+     */
+    public String scrape()
+    {
+        StringBuilder sb = new StringBuilder();
+        counter(sb, "tftp_transfers_started_total", getTransfersStarted());
+        counter(sb, "tftp_transfers_completed_total", getTransfersCompleted());
+        counter(sb, "tftp_transfers_aborted_total", getTransfersAborted());
+        gauge(sb, "tftp_transfers_active", getActiveTransfers());
+        counter(sb, "tftp_bytes_sent_total", getBytesSent());
+        gauge(sb, "tftp_bytes_per_second", getBytesPerSecond());
+        counter(sb, "tftp_packets_sent_total", getPacketsSent());
+        counter(sb, "tftp_blocks_sent_total", getBlocksSent());
+        counter(sb, "tftp_retransmits_total", getRetransmits());
+        counter(sb, "tftp_timeouts_total", getTimeouts());
+        counter(sb, "tftp_duplicate_requests_total", getDuplicateRequests());
+        counter(sb, "tftp_stray_packets_total", getStrayPackets());
+        summary(sb, "tftp_rtt_seconds", "", rtt);
+        sb.append("# TYPE tftp_transfer_seconds summary\n");
+        for(int i = 0; i < completion.length; i++)
+            quantiles(sb, "tftp_transfer_seconds", "size=\"" + SIZE_NAMES[i] + "\",", completion[i]);
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, long v)
+    {
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(v).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, long v)
+    {
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(v).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String labels, TftpHistogram h)
+    {
+        sb.append("# TYPE ").append(name).append(" summary\n");
+        quantiles(sb, name, labels, h);
+    }
+
+    /* a histogram of nanoseconds, as quantiles, sum and count in seconds */
+    private static void quantiles(StringBuilder sb, String name, String labels, TftpHistogram h)
+    {
+        double[] qs = { 0.5, 0.9, 0.99, 1.0 };
+        for(double q : qs) {
+            sb.append(name).append("{").append(labels).append("quantile=\"").append(q).append("\"} ");
+            sb.append(h.percentile(q) / 1e9).append('\n');
+        }
+        String l = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        sb.append(name).append("_sum").append(l).append(' ').append(h.sum() / 1e9).append('\n');
+        sb.append(name).append("_count").append(l).append(' ').append(h.count()).append('\n');
+    }
+}
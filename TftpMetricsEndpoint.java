@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * publishes the server's metrics: as MBeans on the platform MBean
+ * server, for jconsole and anything else that speaks JMX, and as
+ * plain text over HTTP at /metrics, for scrapers such as Prometheus.
+ * the HTTP endpoint listens only on the loopback address; anything
+ * that wants the numbers from elsewhere should come through JMX, or
+ * an agent on the same host.
+ */
+class TftpMetricsEndpoint
+{
+    /*
+     * register the metrics as tftp:type=Metrics, and the pacer's rates
+     * as tftp:type=Pacer, so they can be changed as well as read.
+     */
+    static void register(TftpServerConfig config) throws JMException
+    {
+        ManagementFactory.getPlatformMBeanServer()
+            .registerMBean(config.metrics, new ObjectName("tftp:type=Metrics"));
+        ManagementFactory.getPlatformMBeanServer()
+            .registerMBean(config.pacer, new ObjectName("tftp:type=Pacer"));
+    }
+
+    /*
+     * serve the metrics as text on the loopback address at the given
+     * port, from a daemon thread of the HTTP server's own.  returns
+     * the server, so it may be stopped.
+     */
+    static HttpServer serve(final TftpMetrics metrics, int port) throws IOException
+    {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try(OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        http.start();
+        return http;
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * the server's live counters as seen through JMX, under the name
+ * tftp:type=Metrics.  times are in microseconds.
+ */
+public interface TftpMetricsMBean
+{
+    long getTransfersStarted();
+    long getTransfersCompleted();
+    long getTransfersAborted();
+    long getActiveTransfers();
+    long getBytesSent();
+    long getBytesPerSecond();
+    long getPacketsSent();
+    long getBlocksSent();
+    long getRetransmits();
+    double getRetransmitsPerBlock();
+    long getTimeouts();
+
+    /* RRQs resent for a transfer already running, and non-RRQs, on the listener */
+    long getDuplicateRequests();
+    long getStrayPackets();
+
+    long getRttMeanMicros();
+    long getRttP50Micros();
+    long getRttP99Micros();
+    long getRttMaxMicros();
+
+    /* one line per file size bucket: time to complete, in ms */
+    String[] getCompletionTimes();
+}
@@ -0,0 +1,52 @@
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * the multicast transfers running on the server: at most one per
+ * file, all of them sent to the one group.  the first client to ask
+ * for a file becomes the master of its transfer, which runs as usual
+ * except that its DATA goes to the group.  a client that asks for the
+ * file while that transfer is running joins it: the master's transfer
+ * tells it where to listen, and it collects what it can.  clients
+ * tell the transfers on the group apart by the address they are sent
+ * from, which is the master transfer's own.
+ */
+class TftpMulticast
+{
+    final InetSocketAddress group;
+
+    /* the master transfer of each file being sent, by canonical name */
+    private final Map<File,TftpTransfer> masters = new HashMap<File,TftpTransfer>();
+
+    TftpMulticast(InetSocketAddress group)
+    {
+        this.group = group;
+    }
+
+    /*
+     * make t the master of a transfer of file and return null, or if
+     * the file is already being sent, return that transfer's master.
+     */
+    synchronized TftpTransfer open(File file, TftpTransfer t)
+    {
+        TftpTransfer master = masters.get(file);
+        if(master != null)
+            return master;
+        masters.put(file, t);
+        return null;
+    }
+
+    /* the transfer of file that t is the master of is over */
+    synchronized void close(File file, TftpTransfer t)
+    {
+        masters.remove(file, t);
+    }
+
+    public synchronized String toString()
+    {
+        return masters.size() + " multicast to " + group.getAddress().getHostAddress() +
+            ":" + group.getPort();
+    }
+}
@@ -0,0 +1,452 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * an alternative to the thread-per-transfer server.  every transfer
+ * is a TftpTransfer state machine with its own non-blocking
+ * DatagramChannel (so it still gets its own port, as a TFTP transfer
+ * must), connected to its client, and a small number of event loop threads multiplex all of
+ * them with a Selector.  retransmission deadlines are kept in a timer
+ * wheel per loop rather than in socket timeouts.
+ *
+ * there may be several listening channels, sharing the server's port
+ * with SO_REUSEPORT, each owned by a loop of its own.
+ */
+class TftpNioServer
+{
+    private final DatagramChannel[] listeners;
+    private final TftpServerConfig config;
+    private final TftpEventLoop[] loops;
+    private int nextLoop = 0;
+
+    TftpNioServer(DatagramChannel listener, TftpServerConfig config) throws IOException
+    {
+        this(new DatagramChannel[] { listener }, config);
+    }
+
+    TftpNioServer(DatagramChannel[] listeners, TftpServerConfig config) throws IOException
+    {
+        this.listeners = listeners;
+        this.config = config;
+        this.loops = new TftpEventLoop[config.loops];
+        for(int i = 0; i < loops.length; i++)
+            loops[i] = new TftpEventLoop(this);
+    }
+
+    /*
+     * run the server.  the first loop runs on the calling thread and
+     * also owns the first listening channel; the others get threads
+     * of their own.  listener i belongs to loop i modulo the number
+     * of loops.
+     */
+    public void run() throws IOException
+    {
+        for(int i = 1; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "TftpEventLoop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        for(int i = 0; i < listeners.length; i++) {
+            listeners[i].configureBlocking(false);
+            listeners[i].register(loops[i % loops.length].selector(), SelectionKey.OP_READ);
+        }
+        loops[0].run();
+    }
+
+    /*
+     * the loop to start a request on that loop accepted.  with one
+     * listener, the loops take turns (and only loop zero accepts);
+     * with several, the kernel has already spread the clients across
+     * the listeners, so the request stays on the loop that owns the
+     * one it came in on.
+     */
+    TftpEventLoop assign(TftpEventLoop loop)
+    {
+        if(listeners.length > 1)
+            return loop;
+        TftpEventLoop next = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        return next;
+    }
+
+    TftpServerConfig config() { return config; }
+
+    boolean isListener(SelectionKey key)
+    {
+        for(DatagramChannel l : listeners) {
+            if(key.channel() == l)
+                return true;
+        }
+        return false;
+    }
+}
+
+/*
+ * one event loop thread.  it owns a Selector with the channels of the
+ * transfers assigned to it, and a timer wheel with their deadlines.
+ * new requests arrive through a queue, since they may be accepted on
+ * another loop's thread.
+ */
+class TftpEventLoop implements Runnable
+{
+    /*
+     * how often the timer wheel ticks, and how many slots it has.  the
+     * tick is fine enough for retransmission timeouts of a few
+     * milliseconds on fast links.
+     */
+    static final long TICK_NANOS = 1L * 1000000L;
+    static final int WHEEL_SLOTS = 512;
+
+    private final TftpNioServer server;
+    private final Selector selector;
+    private final TftpTimerWheel<Session> wheel;
+    private final ConcurrentLinkedQueue<DatagramPacket> pending =
+        new ConcurrentLinkedQueue<DatagramPacket>();
+
+    /*
+     * one buffer to receive into, reused for every packet on every
+     * channel the loop owns, with a view wrapped around it to hand to
+     * TftpTransfer.receive.
+     */
+    private final ByteBuffer rx = ByteBuffer.allocateDirect(1472);
+    private final TftpPacket.View view = new TftpPacket.View();
+
+    /* where accept copies each request to look it up */
+    private final byte[] scratch = new byte[1472];
+    private final List<Session> expired = new ArrayList<Session>();
+
+    TftpEventLoop(TftpNioServer server) throws IOException
+    {
+        this.server = server;
+        this.selector = Selector.open();
+        this.wheel = new TftpTimerWheel<Session>(TICK_NANOS, WHEEL_SLOTS, System.nanoTime());
+    }
+
+    Selector selector() { return selector; }
+
+    /* queue a request to be started on this loop's thread */
+    void submit(DatagramPacket req)
+    {
+        pending.add(req);
+        selector.wakeup();
+    }
+
+    public void run()
+    {
+        while(true) {
+            try {
+                /*
+                 * wait for packets, but no longer than a tick if there
+                 * are deadlines to watch.
+                 */
+                if(wheel.isEmpty())
+                    selector.select();
+                else
+                    selector.select(Math.max(1, TICK_NANOS / 1000000));
+
+                DatagramPacket req;
+                while((req = pending.poll()) != null)
+                    start(req);
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if(!key.isValid())
+                        continue;
+                    if(server.isListener(key))
+                        accept((DatagramChannel) key.channel());
+                    else
+                        read((Session) key.attachment());
+                }
+
+                /*
+                 * fire the deadlines that have passed.  an entry is
+                 * stale if the session has since been scheduled for a
+                 * later time.  a session may have moved its deadline
+                 * on since it was scheduled, in which case it just
+                 * goes back on the wheel.  a session whose timeout
+                 * fails (its client's port has gone, say) is closed,
+                 * as when reading fails, and the rest still fire.
+                 */
+                long now = System.nanoTime();
+                wheel.expire(now, expired);
+                try {
+                    for(Session s : expired) {
+                        if(s.transfer.isDone() || s.scheduled > now)
+                            continue;
+                        s.scheduled = Long.MAX_VALUE;
+                        try {
+                            if(now >= s.transfer.deadline())
+                                s.transfer.timeout(s);
+                            after(s);
+                        } catch(IOException e) {
+                            System.err.println("TftpEventLoop Exception: " + e);
+                            close(s);
+                        }
+                    }
+                } finally {
+                    expired.clear();
+                }
+            } catch(IOException e) {
+                System.err.println("TftpEventLoop Exception: " + e);
+            }
+        }
+    }
+
+    /*
+     * read every request waiting on a listening channel this loop
+     * owns, and hand each one to the loop the server assigns it to.
+     * as with the thread engine, anything but an RRQ, and an RRQ
+     * resent for a transfer we are already running, is dropped.
+     */
+    private void accept(DatagramChannel listener) throws IOException
+    {
+        TftpServerConfig config = server.config();
+        SocketAddress from;
+        while((from = listener.receive(rx)) != null) {
+            rx.flip();
+            int length = rx.remaining();
+            if(view.wrap(rx).getType() != TftpPacket.Type.RRQ) {
+                config.metrics.strayPacket();
+                rx.clear();
+                continue;
+            }
+            rx.get(scratch, 0, length);
+            rx.clear();
+            byte[] copy = config.sessions.open((InetSocketAddress) from, scratch, 0, length);
+            if(copy == null) {
+                config.metrics.duplicateRequest();
+                continue;
+            }
+            server.assign(this).submit(new DatagramPacket(copy, copy.length, from));
+        }
+    }
+
+    /*
+     * open a channel for a new transfer, and start it.  the channel
+     * of a multicast transfer is not connected, since it sends to the
+     * group as well as the client.
+     */
+    private void start(DatagramPacket req)
+    {
+        Session s = new Session(new TftpTransfer(req, server.config()),
+                                new InetSocketAddress(req.getAddress(), req.getPort()),
+                                req.getData());
+        try {
+            s.ch = DatagramChannel.open();
+            s.ch.configureBlocking(false);
+            s.ch.bind(null);
+            if(s.transfer.isMulticast())
+                s.ch.setOption(StandardSocketOptions.IP_MULTICAST_IF,
+                               TftpUdpTransport.route(req.getAddress()));
+            else
+                s.ch.connect(s.client);
+            s.key = s.ch.register(selector, SelectionKey.OP_READ, s);
+            s.transfer.start(s);
+            after(s);
+        } catch(IOException e) {
+            System.err.println("TftpEventLoop Exception: " + e);
+            close(s);
+        }
+    }
+
+    /*
+     * pass every packet waiting on a transfer's channel to it.  the
+     * channel is connected, so read (unlike receive) need not allocate
+     * an address for each packet; a multicast transfer's is not, so
+     * it receives, and drops anything not from its client.
+     */
+    private void read(Session s) throws IOException
+    {
+        try {
+            while(!s.transfer.isDone()) {
+                if(s.ch.isConnected()){
+                    if(s.ch.read(rx) <= 0)
+                        break;
+                } else {
+                    SocketAddress from = s.ch.receive(rx);
+                    if(from == null)
+                        break;
+                    if(!s.client.equals(from)){
+                        rx.clear();
+                        continue;
+                    }
+                }
+                rx.flip();
+                s.transfer.receive(view.wrap(rx), s);
+                rx.clear();
+            }
+        } catch(IOException e) {
+            close(s);
+            throw e;
+        }
+        after(s);
+    }
+
+    /*
+     * after a transfer has handled an event, close it if it is done,
+     * or make sure its deadline is on the wheel.
+     */
+    private void after(Session s)
+    {
+        if(s.transfer.isDone()) {
+            close(s);
+            return;
+        }
+        long deadline = s.transfer.deadline();
+        if(deadline < s.scheduled) {
+            s.scheduled = deadline;
+            wheel.schedule(s, deadline);
+        }
+    }
+
+    private void close(Session s)
+    {
+        s.transfer.close();
+        server.config().sessions.close(s.client, s.request);
+        if(s.key != null)
+            s.key.cancel();
+        if(s.ch != null) {
+            try {
+                s.ch.close();
+            } catch(IOException e) {
+                /* the channel is gone either way */
+            }
+        }
+    }
+
+    /*
+     * the per-transfer state the loop keeps: the transfer, the request
+     * it was started from, its channel, and the deadline it is currently scheduled on the wheel
+     * for.  it is also the transfer's Sender.
+     */
+    private static class Session implements TftpTransfer.Sender
+    {
+        final TftpTransfer transfer;
+        final InetSocketAddress client;
+        final byte[] request;
+        DatagramChannel ch;
+        SelectionKey key;
+        long scheduled = Long.MAX_VALUE;
+
+        /* where to gather a packet, on a channel that is not connected */
+        private ByteBuffer scratch = null;
+
+        Session(TftpTransfer transfer, InetSocketAddress client, byte[] request)
+        {
+            this.transfer = transfer;
+            this.client = client;
+            this.request = request;
+        }
+
+        /*
+         * send without blocking.  if the socket buffer is full the
+         * packet is dropped, just as if the network had lost it, and
+         * the transfer's retransmission recovers it.  an unconnected
+         * channel cannot gather, so the packet is copied first.
+         */
+        public void send(ByteBuffer[] packet, InetSocketAddress to) throws IOException
+        {
+            if(ch.isConnected()){
+                ch.write(packet);
+                return;
+            }
+            int n = 0;
+            for(ByteBuffer b : packet)
+                n += b.remaining();
+            if(scratch == null || scratch.capacity() < n)
+                scratch = ByteBuffer.allocate(n);
+            scratch.clear();
+            for(ByteBuffer b : packet)
+                scratch.put(b);
+            scratch.flip();
+            ch.send(scratch, to);
+        }
+    }
+}
+
+/*
+ * a hashed timer wheel.  time is divided into ticks, and an entry due
+ * at a given tick goes in slot (tick % slots); entries more than one
+ * revolution away share the slot and wait for a later pass.  adding an
+ * entry is constant time, and expiring costs one slot per tick, which
+ * is what lets one thread watch thousands of retransmission deadlines.
+ * entries cannot be cancelled; the owner checks whether an expired
+ * entry still matters.  not thread safe.
+ */
+class TftpTimerWheel<T>
+{
+    private final long tickNanos;
+    private final List<List<Entry<T>>> slots;
+    private long tick;          /* the next tick to be processed */
+    private int size = 0;
+
+    private static class Entry<T>
+    {
+        final T item;
+        final long deadline;
+
+        Entry(T item, long deadline)
+        {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    TftpTimerWheel(long tickNanos, int nslots, long now)
+    {
+        this.tickNanos = tickNanos;
+        this.slots = new ArrayList<List<Entry<T>>>(nslots);
+        for(int i = 0; i < nslots; i++)
+            slots.add(new ArrayList<Entry<T>>());
+        this.tick = Math.floorDiv(now, tickNanos);
+    }
+
+    public boolean isEmpty() { return size == 0; }
+
+    /* schedule item to expire at deadline (a System.nanoTime value) */
+    public void schedule(T item, long deadline)
+    {
+        long t = Math.max(Math.floorDiv(deadline, tickNanos), tick);
+        slots.get((int)Math.floorMod(t, (long)slots.size())).add(new Entry<T>(item, deadline));
+        size++;
+    }
+
+    /*
+     * process every tick that has completely passed, adding the items
+     * whose deadline has passed to out, so an item fires at most one
+     * tick late.  if we have fallen more than a revolution behind,
+     * each slot only needs to be looked at once.
+     */
+    public void expire(long now, List<T> out)
+    {
+        long until = Math.floorDiv(now, tickNanos) - 1;
+        long passes = Math.min(until - tick + 1, slots.size());
+        for(long i = 0; i < passes; i++) {
+            List<Entry<T>> slot = slots.get((int)Math.floorMod(tick + i, (long)slots.size()));
+            for(int j = slot.size() - 1; j >= 0; j--) {
+                Entry<T> e = slot.get(j);
+                if(now - e.deadline >= 0) {
+                    out.add(e.item);
+                    slot.set(j, slot.get(slot.size() - 1));
+                    slot.remove(slot.size() - 1);
+                    size--;
+                }
+            }
+        }
+        if(until >= tick)
+            tick = until + 1;
+    }
+}
@@ -0,0 +1,203 @@
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TftpNioServerTest
+{
+    static final long MS = 1000000L;
+
+    /* a wheel of the event loop's size, starting at time zero */
+    private static TftpTimerWheel<String> wheel() {
+        return new TftpTimerWheel<String>(TftpEventLoop.TICK_NANOS, TftpEventLoop.WHEEL_SLOTS, 0);
+    }
+
+    private static List<String> expire(TftpTimerWheel<String> w, long now) {
+        List<String> out = new ArrayList<String>();
+        w.expire(now, out);
+        Collections.sort(out);
+        return out;
+    }
+
+    /*
+     * an entry fires once the tick its deadline falls in has passed,
+     * so at most one tick late, and only once; one scheduled in the
+     * past fires at the next expire.
+     */
+    @Test
+    @DisplayName("test wheel expire")
+    void testWheelExpire() {
+        TftpTimerWheel<String> w = wheel();
+        w.schedule("a", 5 * MS + MS / 2);
+        w.schedule("b", 5 * MS + MS / 2);
+        assertFalse(w.isEmpty());
+        assertEquals(Arrays.asList(), expire(w, 5 * MS));
+        assertEquals(Arrays.asList(), expire(w, 6 * MS - 1));
+        assertEquals(Arrays.asList("a", "b"), expire(w, 6 * MS));
+        assertEquals(Arrays.asList(), expire(w, 7 * MS));
+        assertTrue(w.isEmpty());
+
+        w.schedule("c", 3 * MS);
+        assertEquals(Arrays.asList("c"), expire(w, 8 * MS));
+        assertTrue(w.isEmpty());
+    }
+
+    /*
+     * an entry more than a revolution away shares its slot with the
+     * nearer ticks, and is passed over there until its own turn.
+     */
+    @Test
+    @DisplayName("test wheel wraparound")
+    void testWheelWraparound() {
+        TftpTimerWheel<String> w = wheel();
+        long revolution = TftpEventLoop.WHEEL_SLOTS * TftpEventLoop.TICK_NANOS;
+        w.schedule("near", 100 * MS);
+        w.schedule("next", revolution + 100 * MS);
+        w.schedule("far", 3 * revolution + 100 * MS);
+        for(long now = MS; now <= 4 * revolution; now += MS) {
+            List<String> out = expire(w, now);
+            if(now == 101 * MS)
+                assertEquals(Arrays.asList("near"), out);
+            else if(now == revolution + 101 * MS)
+                assertEquals(Arrays.asList("next"), out);
+            else if(now == 3 * revolution + 101 * MS)
+                assertEquals(Arrays.asList("far"), out);
+            else
+                assertEquals(Arrays.asList(), out, "at " + now / MS + "ms");
+        }
+        assertTrue(w.isEmpty());
+    }
+
+    /*
+     * a loop that falls more than a revolution behind fires everything
+     * that is due in one expire, and nothing that is not.
+     */
+    @Test
+    @DisplayName("test wheel behind")
+    void testWheelBehind() {
+        TftpTimerWheel<String> w = wheel();
+        long revolution = TftpEventLoop.WHEEL_SLOTS * TftpEventLoop.TICK_NANOS;
+        w.schedule("a", 10 * MS);
+        w.schedule("b", revolution + 10 * MS);
+        w.schedule("c", 2 * revolution + 10 * MS);
+        w.schedule("d", 4 * revolution + MS / 2);
+        assertEquals(Arrays.asList("a", "b", "c"), expire(w, 3 * revolution));
+        assertFalse(w.isEmpty());
+        assertEquals(Arrays.asList(), expire(w, 4 * revolution));
+        assertEquals(Arrays.asList("d"), expire(w, 4 * revolution + MS));
+        assertTrue(w.isEmpty());
+    }
+
+    /*
+     * entries are never cancelled.  an item moved to a later deadline
+     * fires again from its old one, and the event loop tells the stale
+     * firing from the real one by the deadline it last scheduled.
+     */
+    @Test
+    @DisplayName("test wheel cancel")
+    void testWheelCancel() {
+        TftpTimerWheel<String> w = wheel();
+        w.schedule("a", 10 * MS);
+        w.schedule("a", 20 * MS);
+        assertEquals(Arrays.asList("a"), expire(w, 11 * MS));
+        assertFalse(w.isEmpty());
+        assertEquals(Arrays.asList("a"), expire(w, 21 * MS));
+        assertTrue(w.isEmpty());
+    }
+
+    /*
+     * start the nio engine on a free loopback port, on a daemon thread
+     * of its own, as the server's main would, and return the port.
+     */
+    private static int serve(TftpServerConfig config) throws IOException {
+        DatagramChannel ch = TftpUdpTransport.bind(null, false);
+        int port = ch.socket().getLocalPort();
+        TftpNioServer server = new TftpNioServer(ch, config);
+        Thread t = new Thread(() -> {
+            try {
+                server.run();
+            } catch(IOException e) {
+                /* the loop failed */
+            }
+        }, "TftpNioServer");
+        t.setDaemon(true);
+        t.start();
+        return port;
+    }
+
+    /* fetch f from the server on port over loopback, and check what arrived */
+    private static TftpDownload fetch(int port, File f, int window, int blksize) throws IOException {
+        File rx = TftpTestFiles.temp();
+        TftpDownload d = new TftpDownload(InetAddress.getLoopbackAddress(), port,
+                                          f.getAbsolutePath(), rx);
+        d.window = window;
+        d.blksize = blksize;
+        try(TftpTransport t = new TftpUdpTransport()) {
+            assertTrue(d.run(t), "error: " + d.getError());
+        }
+        assertArrayEquals(Files.readAllBytes(f.toPath()), Files.readAllBytes(rx.toPath()),
+                          "file arrived intact");
+        return d;
+    }
+
+    /*
+     * over loopback, the nio engine serves windowed and stop-and-wait
+     * transfers, several at once across its loops, refuses a file that
+     * is not there, and serves a file from its cache once the cache
+     * has loaded it in the background.
+     */
+    @Test
+    @DisplayName("test loopback")
+    void testLoopback() throws Exception {
+        TftpServerConfig config = TftpServerConfig.parse(new String[] { "-engine", "nio", "-loops", "2" });
+        int port = serve(config);
+        File f = TftpTestFiles.random(1 << 20);
+        fetch(port, f, 16, 1468);
+        fetch(port, TftpTestFiles.random(3 * 512), 1, 512);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+        for(int i = 0; i < 4; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    results.add(fetch(port, f, 8, 1024));
+                } catch(Throwable e) {
+                    results.add(e);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for(Thread t : threads)
+            t.join();
+        for(Object r : results)
+            assertTrue(r instanceof TftpDownload, "fetched: " + r);
+
+        File rx = TftpTestFiles.temp();
+        TftpDownload missing = new TftpDownload(InetAddress.getLoopbackAddress(), port,
+                                                f.getAbsolutePath() + ".missing", rx);
+        try(TftpTransport t = new TftpUdpTransport()) {
+            assertFalse(missing.run(t));
+        }
+        assertTrue(missing.getError().startsWith("file not found"), missing.getError());
+
+        for(int i = 0; i < 500 && config.cache.getFiles() < 2; i++)
+            Thread.sleep(10);
+        long hits = config.cache.getHits();
+        fetch(port, f, 16, 1468);
+        assertEquals(hits + 1, config.cache.getHits());
+        for(int i = 0; i < 100 && config.metrics.getTransfersCompleted() < 7; i++)
+            Thread.sleep(10);
+        assertEquals(7, config.metrics.getTransfersCompleted());
+    }
+}
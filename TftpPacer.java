@@ -0,0 +1,43 @@
+/*
+ * limits how fast the server sends: each transfer may send at most
+ * the per-transfer rate, and all transfers together at most the
+ * global rate, so that a burst of windowed DATA does not overflow
+ * switch and client buffers.  rates are in bytes per second, and zero
+ * means unlimited.  both can be changed while the server runs; the
+ * new rates apply to the next packet every transfer sends.
+ */
+class TftpPacer implements TftpPacerMBean
+{
+    private volatile long transferRate;
+    private volatile long globalRate;
+    private final TftpTokenBucket global = new TftpTokenBucket(System.nanoTime());
+
+    TftpPacer(long transferRate, long globalRate)
+    {
+        this.transferRate = transferRate;
+        this.globalRate = globalRate;
+    }
+
+    public long getTransferRate() { return transferRate; }
+    public long getGlobalRate() { return globalRate; }
+    public void setTransferRate(long rate) { transferRate = Math.max(0, rate); }
+    public void setGlobalRate(long rate) { globalRate = Math.max(0, rate); }
+
+    /*
+     * ask to send a packet of the given size on a transfer with its
+     * own bucket.  returns zero if the packet may go now, having taken
+     * its tokens from both buckets, or else how many nanoseconds to
+     * wait before asking again, having taken nothing.
+     */
+    public long acquire(TftpTokenBucket own, long bytes, long now)
+    {
+        long tr = transferRate;
+        long wait = own.tryAcquire(bytes, tr, now);
+        if(wait > 0)
+            return wait;
+        wait = global.tryAcquire(bytes, globalRate, now);
+        if(wait > 0)
+            own.refund(bytes, tr);
+        return wait;
+    }
+}
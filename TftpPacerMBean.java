@@ -0,0 +1,11 @@
+/*
+ * the pacer's rates as seen through JMX, under the name
+ * tftp:type=Pacer.  rates are in bytes per second; 0 is unlimited.
+ */
+public interface TftpPacerMBean
+{
+    long getTransferRate();
+    long getGlobalRate();
+    void setTransferRate(long rate);
+    void setGlobalRate(long rate);
+}
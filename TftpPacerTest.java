@@ -0,0 +1,57 @@
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TftpPacerTest
+{
+    static final long MS = 1000000L;
+
+    /*
+     * at 1000 bytes per second a 100 byte packet costs 100ms.  ensure
+     * the bucket lets a burst of up to the tolerance through, then
+     * makes us wait, and that over a long run the rate is exact.
+     */
+    @Test
+    @DisplayName("test token bucket rate")
+    void testRate() {
+        long now = 0;
+        TftpTokenBucket b = new TftpTokenBucket(now);
+        assertEquals(0, b.tryAcquire(100, 1000, now));
+        long wait = b.tryAcquire(100, 1000, now);
+        assertEquals(100 * MS - TftpTokenBucket.TOLERANCE_NANOS, wait);
+
+        int sent = 1;
+        while(now < 10000 * MS) {
+            wait = b.tryAcquire(100, 1000, now);
+            if(wait > 0)
+                now += wait;
+            else
+                sent++;
+        }
+        assertEquals(101, sent, "10 seconds at 1000 bytes per second, plus the first");
+        assertEquals(0, b.tryAcquire(100, 0, now), "rate 0 is unlimited");
+    }
+
+    /*
+     * a packet refused by the global bucket must not use up the
+     * transfer's own tokens, and changing the rate takes effect on the
+     * next packet.
+     */
+    @Test
+    @DisplayName("test global limit and refund")
+    void testGlobal() {
+        TftpPacer pacer = new TftpPacer(0, 1000);
+        long now = System.nanoTime();
+        TftpTokenBucket own = new TftpTokenBucket(now);
+        assertEquals(0, pacer.acquire(own, 100, now));
+        assertTrue(pacer.acquire(own, 100, now) > 0, "held back by the global rate");
+
+        pacer.setTransferRate(1000);
+        pacer.setGlobalRate(0);
+        assertEquals(0, pacer.acquire(own, 100, now), "own bucket was not charged");
+        assertTrue(pacer.acquire(own, 100, now) > 0, "now held back by the transfer rate");
+        pacer.setTransferRate(0);
+        assertEquals(0, pacer.acquire(own, 100, now));
+    }
+}
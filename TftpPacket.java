@@ -1,18 +1,112 @@
 //Shifaz Ali, 1323080
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 class TftpPacket
 {
     /* private internal variables used by the parse method */
-    public enum Type {RRQ, DATA, ACK, ERROR};
+    public enum Type {RRQ, DATA, ACK, ERROR, OACK, SACK};
+
+    /*
+     * names of the options a client may append to an RRQ, and which
+     * the server echoes back in an OACK if it agrees to them.
+     */
+    static final String OPT_WINDOWSIZE = "windowsize";
+    static final String OPT_BLKSIZE = "blksize";
+
+    /*
+     * tsize (RFC 2349) asks the server for the size of the file.
+     * offset and length ask for only that many bytes of the file from
+     * that offset, which must be a multiple of the block size; the
+     * server answers with the length it will actually send.
+     */
+    static final String OPT_TSIZE = "tsize";
+    static final String OPT_OFFSET = "offset";
+    static final String OPT_LENGTH = "length";
+
+    /*
+     * wideblocks asks for DATA and ACK packets with a four byte block
+     * number in place of the one byte one.  they have types of their
+     * own (6 and 7), so they cannot be mistaken for the old packets,
+     * and with over four billion numbers before they wrap, a large
+     * window or a stale duplicate ACK is never ambiguous.
+     */
+    static final String OPT_WIDEBLOCKS = "wideblocks";
+    static final long MAX_WIDE_BLOCK = 0xFFFFFFFFL;
+
+    /*
+     * compress asks for the file as a compressed stream, cut into
+     * blocks like any other file; the only value is "deflate", a zlib
+     * stream.  the client knows the stream is over from the short
+     * final block, as usual, and inflates blocks as they arrive.
+     */
+    static final String OPT_COMPRESS = "compress";
+    static final String COMPRESS_DEFLATE = "deflate";
+
+    /*
+     * sack (which needs wideblocks) lets the client acknowledge
+     * blocks that arrived after a gap with a SACK (type 8): a wide
+     * cumulative ACK followed by a bitmap, whose bit i (counting from
+     * the top bit of the first byte) is set if block cumulative + 1 +
+     * i has arrived.  the server then resends only the blocks missing
+     * below the highest one that arrived, rather than the whole
+     * window from the gap.
+     */
+    static final String OPT_SACK = "sack";
+
+    /*
+     * multicast (RFC 2090, which needs wideblocks here) asks to fetch
+     * the file along with every other client fetching it at the same
+     * time.  the client sends an empty value; the server answers
+     * "address,port,master", naming the group the DATA is sent to and
+     * whether this client is the master, which ACKs as usual, or not,
+     * in which case it only listens, and fetches whatever it missed
+     * by unicast once the group falls silent.
+     */
+    static final String OPT_MULTICAST = "multicast";
+
+    /*
+     * digest asks for a digest of the whole file, whichever part of it
+     * is sent, so the client can check what it wrote.  the client
+     * names an algorithm (see TftpDigest), and the server answers
+     * "algorithm:hex", or leaves the option out if it does not know
+     * the algorithm or has not hashed the file yet.
+     */
+    static final String OPT_DIGEST = "digest";
+
+    /*
+     * mtime asks, like tsize, for the time the file was last modified,
+     * in milliseconds since the epoch, so that a client resuming a
+     * download can tell whether the file has changed since it started
+     * without it changing size.
+     */
+    static final String OPT_MTIME = "mtime";
+
+    /*
+     * the block size used when no other size has been negotiated, and
+     * the range a negotiated block size must fall in.  a block of
+     * 1468 bytes fills a 1500 byte ethernet MTU (20 bytes of IP
+     * header, 8 of UDP, and 2 of our header); the maximum is what fits
+     * in a single IPv4 UDP datagram, for loopback and jumbo frames.
+     */
+    static final int DEFAULT_BLKSIZE = 512;
+    static final int MIN_BLKSIZE = 8;
+    static final int MAX_BLKSIZE = 65464;
+
     private InetAddress addr = null;
     private int port = 0;
     private Type type = null;
     private String filename = null;
     private String error = null;
     private int block = 0;
+    private boolean wide = false;
     private byte[] data = null;
+    private Map<String,String> options = Collections.emptyMap();
 
     /* getter methods for these private variables */
     public InetAddress getAddr() { return addr; }
@@ -21,7 +115,9 @@ class TftpPacket
     public String getFilename() { return filename; }
     public String getError() { return error; }
     public int getBlock() { return block; }
+    public boolean isWide() { return wide; }
     public byte[] getData() { return data; }
+    public Map<String,String> getOptions() { return options; }
 
     /* utility method to convert the TftpPacket to a string form */
     public String toString()
@@ -36,6 +132,8 @@ class TftpPacket
             return "ACK " + block;
         else if(type == Type.ERROR)
             return "ERROR " + (error != null ? error : "<null>");
+        else if(type == Type.OACK)
+            return "OACK " + options;
         return "unknown TftpPacket";
     }
 
@@ -70,12 +168,61 @@ class TftpPacket
         return current;
     }
 
+    /*
+     * utility method to determine the block number that goes on the
+     * wire for the nth block of a transfer (counting from one), given
+     * that block numbers wrap from 255 back to 1.  the zeroth block
+     * is the block an OACK is acknowledged with.
+     */
+    static int wireBlock(long n)
+    {
+        if(n <= 0){
+            return 0;
+        }
+        return (int)((n - 1) % 255) + 1;
+    }
+
+    /*
+     * the same, for a transfer that may have agreed to wide block
+     * numbers, which wrap from MAX_WIDE_BLOCK back to 1.
+     */
+    static long wireBlock(long n, boolean wide)
+    {
+        if(!wide)
+            return wireBlock(n);
+        if(n <= 0){
+            return 0;
+        }
+        return (n - 1) % MAX_WIDE_BLOCK + 1;
+    }
+
+    /* the length of the header of a DATA or ACK packet */
+    static int headerLength(boolean wide)
+    {
+        return wide ? 5 : 2;
+    }
+
     /*
      * utility method to create an RRQ DatagramPacket, given the
      * destination address, port number, and filename.
      */
     static public DatagramPacket createRRQ(InetAddress dst, int port,
                                            String filename)
+    {
+        return createRRQ(dst, port, filename, null);
+    }
+
+    /*
+     * utility method to create an RRQ DatagramPacket that also carries
+     * a set of options for the server to negotiate.  each option is
+     * appended after the filename as a zero byte, the option name, a
+     * zero byte, and the option value.  a request with no options is
+     * exactly the same as one built by createRRQ above, so servers
+     * that do not know about options still understand it.
+     */
+    static public DatagramPacket createRRQ(InetAddress dst, int port,
+                                           String filename,
+                                           Map<String,String> options)
     {
         /*
          * if the filename is empty, the destination address is null,
@@ -91,14 +238,16 @@ class TftpPacket
          * type, followed by the filename byte array
          */
         byte[] bytes = filename.getBytes();
-        byte[] payload = new byte[1 + bytes.length];
+        byte[] opts = encodeOptions(options);
+        byte[] payload = new byte[1 + bytes.length + opts.length];
         payload[0] = 1; /* 1 == RRQ */
 
         /*
          * copy the filename, which we converted to a string, into the
-         * payload
+         * payload, followed by any options
          */
         System.arraycopy(bytes, 0, payload, 1, bytes.length);
+        System.arraycopy(opts, 0, payload, 1 + bytes.length, opts.length);
 
         /* return a DatagramPacket with the payload / dst / port */
         return new DatagramPacket(payload, payload.length, dst, port);
@@ -117,7 +266,11 @@ class TftpPacket
          * valid DatagramPacket, so return null.
          */
 
-        if(block < 1 || block > 255 || dst == null || port < 1 || port > 65535){
+        /*
+         * block zero is allowed here: it is how a client acknowledges
+         * an OACK before the first DATA block is sent.
+         */
+        if(block < 0 || block > 255 || dst == null || port < 1 || port > 65535){
             return null;
         }
         byte[] payload = new byte[2];
@@ -140,18 +293,234 @@ class TftpPacket
          * then we cannot build a valid DatagramPacket, so return
          * null.
          */
-        if(block < 1 || block > 255 || length > 512 || dst == null || port < 1 || port > 65535){
+        if(block < 1 || block > 255 || length < 0 || length > MAX_BLKSIZE ||
+           length > data.length || dst == null || port < 1 || port > 65535){
             return null;
         }
 
         byte[] payload = new byte[2 + length]; //[type | block | data]
         payload[0] = 2; // 2 == DATA (Type)
         payload[1] = (byte)block;
-        System.arraycopy(data, 0, payload, 2, data.length);
+        System.arraycopy(data, 0, payload, 2, length);
 
         return new DatagramPacket(payload, payload.length, dst, port);
     }
 
+    /*
+     * utility method to write the two byte header of a DATA packet
+     * into a caller-owned buffer, ready to be sent in front of the
+     * block's contents with a gathering write.  the buffer is flipped
+     * so that it is ready to be read from.
+     */
+    static public ByteBuffer putDATAHeader(ByteBuffer dst, int block)
+    {
+        return putDATAHeader(dst, block, false);
+    }
+
+    /* the same, with a wide block number if the transfer agreed to it */
+    static public ByteBuffer putDATAHeader(ByteBuffer dst, long block, boolean wide)
+    {
+        dst.clear();
+        if(wide) {
+            dst.put((byte)6); // 6 == DATA with a wide block number
+            dst.putInt((int) block);
+        } else {
+            dst.put((byte)2); // 2 == DATA (Type)
+            dst.put((byte)block);
+        }
+        dst.flip();
+        return dst;
+    }
+
+    /*
+     * utility method to encode an ACK into a caller-owned byte array
+     * at the given offset, so that a DatagramPacket wrapped around the
+     * array can be reused for every ACK.  returns the length of the
+     * packet, or -1 if the block number is invalid or the array is too
+     * small.
+     */
+    static public int encodeACK(byte[] dst, int off, int block)
+    {
+        return encodeACK(dst, off, block, false);
+    }
+
+    /* the same, with a wide block number if the transfer agreed to it */
+    static public int encodeACK(byte[] dst, int off, long block, boolean wide)
+    {
+        int hlen = headerLength(wide);
+        if(block < 0 || block > (wide ? MAX_WIDE_BLOCK : 255) ||
+           dst == null || off < 0 || off + hlen > dst.length)
+            return -1;
+        dst[off] = (byte)(wide ? 7 : 3); // 3 == ACK, 7 == ACK with a wide block number
+        putBlock(dst, off + 1, block, wide);
+        return hlen;
+    }
+
+    /*
+     * encode the start of a SACK into a caller-owned byte array: the
+     * cumulative (wide) block number, and a cleared bitmap with room
+     * for bits blocks after it, to be set with setSACKBit.  returns
+     * the length of the packet, or -1 if the block number is invalid
+     * or the array is too small.
+     */
+    static public int encodeSACK(byte[] dst, int off, long block, int bits)
+    {
+        int len = 5 + (bits + 7) / 8;
+        if(block < 0 || block > MAX_WIDE_BLOCK || bits < 0 ||
+           dst == null || off < 0 || off + len > dst.length)
+            return -1;
+        dst[off] = 8; // 8 == SACK
+        putBlock(dst, off + 1, block, true);
+        Arrays.fill(dst, off + 5, off + len, (byte)0);
+        return len;
+    }
+
+    /* mark block cumulative + 1 + i as arrived in a SACK at off */
+    static public void setSACKBit(byte[] dst, int off, int i)
+    {
+        dst[off + 5 + i / 8] |= (byte)(0x80 >>> (i % 8));
+    }
+
+    /*
+     * utility method to encode a DATA packet into a caller-owned byte
+     * array at the given offset, copying length bytes of the block
+     * from data.  returns the length of the packet, or -1 if the block
+     * number or length is invalid or the array is too small.
+     */
+    static public int encodeDATA(byte[] dst, int off, int block,
+                                 byte[] data, int doff, int length)
+    {
+        return encodeDATA(dst, off, block, false, data, doff, length);
+    }
+
+    /* the same, with a wide block number if the transfer agreed to it */
+    static public int encodeDATA(byte[] dst, int off, long block, boolean wide,
+                                 byte[] data, int doff, int length)
+    {
+        int hlen = headerLength(wide);
+        if(block < 1 || block > (wide ? MAX_WIDE_BLOCK : 255) ||
+           length < 0 || length > MAX_BLKSIZE ||
+           dst == null || off < 0 || off + hlen + length > dst.length)
+            return -1;
+        dst[off] = (byte)(wide ? 6 : 2); // 2 == DATA, 6 == DATA with a wide block number
+        putBlock(dst, off + 1, block, wide);
+        System.arraycopy(data, doff, dst, off + hlen, length);
+        return hlen + length;
+    }
+
+    /* write a block number, big-endian if it is wide */
+    private static void putBlock(byte[] dst, int off, long block, boolean wide)
+    {
+        if(wide) {
+            dst[off] = (byte)(block >>> 24);
+            dst[off+1] = (byte)(block >>> 16);
+            dst[off+2] = (byte)(block >>> 8);
+            dst[off+3] = (byte) block;
+        } else {
+            dst[off] = (byte) block;
+        }
+    }
+
+    /*
+     * a reusable, read-only view of a packet that decodes the type,
+     * block number and where the payload is straight out of the
+     * buffer it arrived in, rather than allocating a TftpPacket and
+     * copying the payload as parse does.  wrap the view around a
+     * packet and then query it; nothing is allocated, so the view can
+     * be used for every packet of a transfer.  the view is only valid
+     * until the buffer is reused.
+     */
+    static final class View
+    {
+        private byte[] array = null;
+        private ByteBuffer buffer = null;
+        private int offset = 0;
+        private int length = 0;
+
+        /* view the packet that was received into a DatagramPacket */
+        public View wrap(DatagramPacket p)
+        {
+            this.array = p.getData();
+            this.buffer = null;
+            this.offset = p.getOffset();
+            this.length = p.getLength();
+            return this;
+        }
+
+        /*
+         * view the packet between the position and limit of a
+         * ByteBuffer, which may be direct.  the buffer's position and
+         * limit are not changed.
+         */
+        public View wrap(ByteBuffer b)
+        {
+            this.array = null;
+            this.buffer = b;
+            this.offset = b.position();
+            this.length = b.remaining();
+            return this;
+        }
+
+        private int at(int i)
+        {
+            return Byte.toUnsignedInt(array != null ? array[offset + i] : buffer.get(offset + i));
+        }
+
+        /*
+         * the type of the packet, or null if it is not a packet that
+         * parse would accept.
+         */
+        public Type getType()
+        {
+            if(length < 1)
+                return null;
+            switch(at(0)) {
+            case 1: return length >= 2 && at(1) != 0 ? Type.RRQ : null;
+            case 2: return length >= 2 ? Type.DATA : null;
+            case 3: return length == 2 ? Type.ACK : null;
+            case 4: return length >= 3 ? Type.ERROR : null;
+            case 5: return length >= 4 ? Type.OACK : null;
+            case 6: return length >= 5 ? Type.DATA : null;
+            case 7: return length == 5 ? Type.ACK : null;
+            case 8: return length >= 5 ? Type.SACK : null;
+            default: return null;
+            }
+        }
+
+        /* true if a DATA, ACK or SACK packet has a wide block number */
+        public boolean isWide() { return length >= 1 && at(0) >= 6; }
+
+        /* the block number of a DATA or ACK packet, or a SACK's cumulative one */
+        public long getBlock()
+        {
+            if(!isWide())
+                return at(1);
+            return ((long) at(1) << 24) | (at(2) << 16) | (at(3) << 8) | at(4);
+        }
+
+        /*
+         * where the payload of a DATA packet starts, as an index into
+         * the array or buffer the view wraps, and how long it is.
+         */
+        public int getDataOffset() { return offset + headerLength(isWide()); }
+        public int getDataLength() { return length - headerLength(isWide()); }
+
+        /*
+         * how many blocks after its cumulative block a SACK reports
+         * on, and whether the i'th of them has arrived.
+         */
+        public int getSackBits() { return (length - 5) * 8; }
+        public boolean isSacked(int i) { return (at(5 + i / 8) & (0x80 >>> (i % 8))) != 0; }
+
+        /* the array the view wraps, if it wraps a DatagramPacket */
+        public byte[] array() { return array; }
+
+        /* the buffer the view wraps, if it wraps a ByteBuffer */
+        public ByteBuffer buffer() { return buffer; }
+
+        public int length() { return length; }
+    }
+
     /*
      * utility method to create an ERROR DatagramPacket, given
      * the destination address, port number, and error string.
@@ -177,6 +546,63 @@ class TftpPacket
         return new DatagramPacket(payload, payload.length, dst, port);
     }
 
+    /*
+     * utility method to create an OACK DatagramPacket, given the
+     * destination address, port number, and the options that the
+     * server agreed to.
+     */
+    static public DatagramPacket createOACK(InetAddress dst, int port,
+                                            Map<String,String> options)
+    {
+        if(options == null || options.isEmpty() || dst == null || port < 1 || port > 65535){
+            return null;
+        }
+
+        byte[] opts = encodeOptions(options);
+        byte[] payload = new byte[opts.length];
+        System.arraycopy(opts, 0, payload, 0, opts.length);
+        payload[0] = 5; // 5 == OACK (Type), replaces the leading zero
+
+        return new DatagramPacket(payload, payload.length, dst, port);
+    }
+
+    /*
+     * encode options as a sequence of zero-prefixed name and value
+     * strings: 0 name 0 value 0 name 0 value ...
+     */
+    private static byte[] encodeOptions(Map<String,String> options)
+    {
+        if(options == null || options.isEmpty())
+            return new byte[0];
+
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String,String> e : options.entrySet()) {
+            sb.append('\0').append(e.getKey());
+            sb.append('\0').append(e.getValue());
+        }
+        return sb.toString().getBytes();
+    }
+
+    /*
+     * decode options encoded by encodeOptions, starting at offset
+     * (which points at the zero byte before the first name).  an
+     * incomplete trailing option is ignored.  option names are
+     * case-insensitive, so they are folded to lower case.
+     */
+    private static Map<String,String> decodeOptions(byte[] data, int offset,
+                                                    int length)
+    {
+        Map<String,String> options = new LinkedHashMap<String,String>();
+        String[] parts = new String(data, offset, length - offset).split("\0", -1);
+
+        /* parts[0] is the empty string before the leading zero byte */
+        for(int i = 1; i + 1 < parts.length; i += 2) {
+            if(!parts[i].isEmpty())
+                options.put(parts[i].toLowerCase(), parts[i+1]);
+        }
+        return options;
+    }
+
     /*
      * utility method to parse a DatagramPacket, so that the user of
      * the class can access parts of each TFTP packet that they are
@@ -209,13 +635,25 @@ class TftpPacket
                 return null;
             p.type = Type.RRQ;
 
+            /*
+             * the filename runs until the first zero byte, if there
+             * is one; anything after that is a list of options.
+             */
+            int end = 1;
+            while(end < length && data[end] != 0)
+                end++;
+            if(end == 1)
+                return null;
+
             /*
              * use a string constructor that builds a string from a
              * byte array.  the first parameter is 1 because that's
              * the offset in the byte array to find the first
              * character of the string.
              */
-            p.filename = new String(data, 1, length - 1);
+            p.filename = new String(data, 1, end - 1);
+            if(end < length)
+                p.options = decodeOptions(data, end, length);
 
             /* we've decoded the packet, so return it now */
             return p;
@@ -280,6 +718,46 @@ class TftpPacket
             p.error = new String(data, 1, length - 1);
             return p;
         }
+        else if(data[0] == 5) {
+            /*
+             * parse the OACK packet, which carries at least one
+             * option name and value after the type field.
+             */
+            if(length < 4){
+                return null;
+            }
+            p.type = Type.OACK;
+
+            /*
+             * decodeOptions expects a zero byte before the first
+             * name, which is where the type field is.
+             */
+            byte[] copy = new byte[length];
+            System.arraycopy(data, 1, copy, 1, length - 1);
+            p.options = decodeOptions(copy, 0, length);
+            if(p.options.isEmpty())
+                return null;
+            return p;
+        }
+        else if(data[0] == 6 || data[0] == 7) {
+            /*
+             * parse a DATA or ACK packet with a wide block number,
+             * which has the same rules as the view.  the block number
+             * is kept as an int, so transfers of more than 2^31
+             * blocks must use the view to see it whole.
+             */
+            View v = new View().wrap(in);
+            if(v.getType() == null)
+                return null;
+            p.type = v.getType();
+            p.wide = true;
+            p.block = (int) v.getBlock();
+            if(p.type == Type.DATA) {
+                p.data = new byte[v.getDataLength()];
+                System.arraycopy(data, 5, p.data, 0, p.data.length);
+            }
+            return p;
+        }
         /*
          * the packet could not be decoded because it used an
          * unrecognized type, so return null
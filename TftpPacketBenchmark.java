@@ -0,0 +1,138 @@
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * JMH benchmarks of the packet codec: the allocating parse and
+ * create methods, and the allocation-free view and encode methods
+ * that the transfer engines use, at payload sizes from an empty final
+ * block to the largest block size.
+ *
+ * build against jmh-core with jmh-generator-annprocess on the
+ * annotation processor path, then run
+ *
+ *     java TftpPacketBenchmark [results.json]
+ *
+ * which runs with the GC profiler, so each result carries its
+ * allocation rate (gc.alloc.rate.norm is bytes per operation), and
+ * writes the results as JSON for comparison between versions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TftpPacketBenchmark
+{
+    @Param({"0", "512", "1468", "8192", "65464"})
+    public int size;
+
+    private InetAddress ia;
+    private byte[] data;
+    private DatagramPacket dataPacket;
+    private DatagramPacket ackPacket;
+    private ByteBuffer direct;
+    private byte[] encodeBuf;
+    private final TftpPacket.View view = new TftpPacket.View();
+
+    @Setup
+    public void setup() throws UnknownHostException
+    {
+        ia = InetAddress.getByName("127.0.0.1");
+        data = new byte[size];
+        for(int i = 0; i < size; i++)
+            data[i] = (byte) i;
+        dataPacket = TftpPacket.createDATA(ia, 69, 7, data, size);
+        ackPacket = TftpPacket.createACK(ia, 69, 7);
+        direct = ByteBuffer.allocateDirect(TftpPacket.headerLength(true));
+        encodeBuf = new byte[TftpPacket.headerLength(true) + size];
+    }
+
+    /* the allocating API: a new TftpPacket, and a copy of the payload */
+
+    @Benchmark
+    public TftpPacket parseDATA()
+    {
+        return TftpPacket.parse(dataPacket);
+    }
+
+    @Benchmark
+    public TftpPacket parseACK()
+    {
+        return TftpPacket.parse(ackPacket);
+    }
+
+    @Benchmark
+    public DatagramPacket createDATA()
+    {
+        return TftpPacket.createDATA(ia, 69, 7, data, size);
+    }
+
+    @Benchmark
+    public DatagramPacket createACK()
+    {
+        return TftpPacket.createACK(ia, 69, 7);
+    }
+
+    /* the allocation-free API the transfer engines use */
+
+    @Benchmark
+    public void viewDATA(Blackhole bh)
+    {
+        view.wrap(dataPacket);
+        bh.consume(view.getType());
+        bh.consume(view.getBlock());
+        bh.consume(view.getDataLength());
+    }
+
+    @Benchmark
+    public int encodeDATA()
+    {
+        return TftpPacket.encodeDATA(encodeBuf, 0, 7, data, 0, size);
+    }
+
+    @Benchmark
+    public int encodeACK()
+    {
+        return TftpPacket.encodeACK(encodeBuf, 0, 7);
+    }
+
+    @Benchmark
+    public ByteBuffer putWideDATAHeader()
+    {
+        return TftpPacket.putDATAHeader(direct, 70000, true);
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        Options opts = new OptionsBuilder()
+            .include(TftpPacketBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .resultFormat(ResultFormatType.JSON)
+            .result(args.length > 0 ? args[0] : "jmh-codec.json")
+            .build();
+        new Runner(opts).run();
+    }
+}
@@ -5,6 +5,9 @@ import org.junit.jupiter.api.Test;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -170,4 +173,211 @@ class TftpPacketTest
         TftpPacket tp = TftpPacket.parse(dp);
         assertArrayEquals(data, tp.getData(), "empty data is equivalent");
     }
+
+    /*
+     * construct an RRQ carrying options; ensure that parse separates
+     * the filename from the options, and that an RRQ with an empty
+     * option map is byte-for-byte the same as one without options.
+     */
+    @Test
+    @DisplayName("test RRQ options")
+    void testRRQOptions() {
+        InetAddress ia;
+        try {
+            ia = InetAddress.getByName("127.0.0.1");
+        } catch(UnknownHostException e) {
+            ia = null;
+        }
+        Map<String,String> options = new LinkedHashMap<String,String>();
+        options.put(TftpPacket.OPT_WINDOWSIZE, "16");
+        DatagramPacket dp = TftpPacket.createRRQ(ia, 69, "foo", options);
+        assertNotNull(dp);
+        TftpPacket tp = TftpPacket.parse(dp);
+        assertNotNull(tp);
+        assertEquals(TftpPacket.Type.RRQ, tp.getType());
+        assertEquals("foo", tp.getFilename());
+        assertEquals("16", tp.getOptions().get(TftpPacket.OPT_WINDOWSIZE));
+
+        DatagramPacket plain = TftpPacket.createRRQ(ia, 69, "foo");
+        DatagramPacket empty = TftpPacket.createRRQ(ia, 69, "foo",
+                new LinkedHashMap<String,String>());
+        assertEquals(plain.getLength(), empty.getLength());
+        assertTrue(TftpPacket.parse(plain).getOptions().isEmpty());
+    }
+
+    /*
+     * construct an OACK using TftpPacket.createOACK and ensure that
+     * parse returns the same options.  ensure an ACK of block zero,
+     * which acknowledges an OACK, can be built and parsed.
+     */
+    @Test
+    @DisplayName("test OACK")
+    void testOACK() {
+        InetAddress ia;
+        try {
+            ia = InetAddress.getByName("127.0.0.1");
+        } catch(UnknownHostException e) {
+            ia = null;
+        }
+        Map<String,String> options = new LinkedHashMap<String,String>();
+        options.put(TftpPacket.OPT_WINDOWSIZE, "8");
+        DatagramPacket dp = TftpPacket.createOACK(ia, 69, options);
+        assertNotNull(dp);
+        TftpPacket tp = TftpPacket.parse(dp);
+        assertNotNull(tp);
+        assertEquals(TftpPacket.Type.OACK, tp.getType());
+        assertEquals(options, tp.getOptions());
+
+        dp = TftpPacket.createACK(ia, 69, 0);
+        assertNotNull(dp);
+        assertEquals(0, TftpPacket.parse(dp).getBlock());
+    }
+
+    /*
+     * ensure that TftpPacket.wireBlock maps block counts that run past
+     * 255 onto the 1 .. 255 wire numbering used by nextBlock.
+     */
+    @Test
+    @DisplayName("test wireBlock")
+    void testWireBlock() {
+        assertEquals(0, TftpPacket.wireBlock(0));
+        int wire = 1;
+        for (long n = 1; n <= 1000; n++) {
+            assertEquals(wire, TftpPacket.wireBlock(n));
+            wire = TftpPacket.nextBlock(wire);
+        }
+    }
+
+    /*
+     * construct a DATA packet with a negotiated block size larger than
+     * 512 bytes and ensure parse returns the whole payload.  ensure
+     * that a block larger than MAX_BLKSIZE is rejected.
+     */
+    @Test
+    @DisplayName("test large DATA")
+    void testLargeDATA() {
+        InetAddress ia;
+        try {
+            ia = InetAddress.getByName("127.0.0.1");
+        } catch(UnknownHostException e) {
+            ia = null;
+        }
+        byte[] data = new byte[1468];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        DatagramPacket dp = TftpPacket.createDATA(ia, 69, 7, data, data.length);
+        assertNotNull(dp);
+        TftpPacket tp = TftpPacket.parse(dp);
+        assertEquals(7, tp.getBlock());
+        assertArrayEquals(data, tp.getData());
+
+        byte[] huge = new byte[TftpPacket.MAX_BLKSIZE + 1];
+        assertNull(TftpPacket.createDATA(ia, 69, 7, huge, huge.length));
+    }
+
+    /*
+     * encode DATA and ACK packets into caller-owned arrays, and ensure
+     * that a View wrapped around them (as a DatagramPacket, and as a
+     * direct ByteBuffer) decodes the same type, block and payload that
+     * parse does.
+     */
+    @Test
+    @DisplayName("test View")
+    void testView() {
+        byte[] data = {55, 66, 77};
+        byte[] buf = new byte[16];
+        int len = TftpPacket.encodeDATA(buf, 0, 200, data, 0, data.length);
+        assertEquals(5, len);
+        DatagramPacket dp = new DatagramPacket(buf, len);
+
+        TftpPacket.View view = new TftpPacket.View();
+        view.wrap(dp);
+        assertEquals(TftpPacket.Type.DATA, view.getType());
+        assertEquals(200, view.getBlock());
+        assertEquals(data.length, view.getDataLength());
+        assertEquals(77, view.array()[view.getDataOffset() + 2]);
+        assertArrayEquals(data, TftpPacket.parse(dp).getData());
+
+        ByteBuffer bb = ByteBuffer.allocateDirect(8);
+        len = TftpPacket.encodeACK(buf, 0, 133);
+        bb.put(buf, 0, len).flip();
+        view.wrap(bb);
+        assertEquals(TftpPacket.Type.ACK, view.getType());
+        assertEquals(133, view.getBlock());
+        assertEquals(0, bb.position(), "wrap does not move the buffer");
+
+        assertEquals(-1, TftpPacket.encodeACK(buf, 15, 1), "too small");
+        assertNull(view.wrap(new DatagramPacket(new byte[]{66}, 1)).getType());
+        assertNull(view.wrap(new DatagramPacket(new byte[]{3, 1, 0}, 3)).getType(),
+                "an ACK must be exactly two bytes");
+    }
+
+    /*
+     * encode DATA and ACK packets with wide block numbers.  ensure the
+     * view and parse see the whole four byte number and the payload
+     * after the longer header, and that wide block numbers wrap after
+     * MAX_WIDE_BLOCK rather than 255.
+     */
+    @Test
+    @DisplayName("test wide blocks")
+    void testWideBlocks() {
+        assertEquals(256, TftpPacket.wireBlock(256, true));
+        assertEquals(1, TftpPacket.wireBlock(256, false));
+        assertEquals(1, TftpPacket.wireBlock(TftpPacket.MAX_WIDE_BLOCK + 1, true));
+
+        byte[] data = {55, 66, 77};
+        byte[] buf = new byte[16];
+        long block = 3000000000L;
+        int len = TftpPacket.encodeDATA(buf, 0, block, true, data, 0, data.length);
+        assertEquals(8, len);
+        DatagramPacket dp = new DatagramPacket(buf, len);
+        TftpPacket.View view = new TftpPacket.View().wrap(dp);
+        assertEquals(TftpPacket.Type.DATA, view.getType());
+        assertTrue(view.isWide());
+        assertEquals(block, view.getBlock());
+        assertEquals(data.length, view.getDataLength());
+        assertEquals(55, view.array()[view.getDataOffset()]);
+        TftpPacket tp = TftpPacket.parse(dp);
+        assertTrue(tp.isWide());
+        assertArrayEquals(data, tp.getData());
+
+        len = TftpPacket.encodeACK(buf, 0, 70000, true);
+        assertEquals(5, len);
+        view.wrap(new DatagramPacket(buf, len));
+        assertEquals(TftpPacket.Type.ACK, view.getType());
+        assertEquals(70000, view.getBlock());
+        assertEquals(70000, TftpPacket.parse(new DatagramPacket(buf, len)).getBlock());
+
+        assertEquals(-1, TftpPacket.encodeACK(buf, 0, 256, false), "too wide for one byte");
+        assertNull(view.wrap(new DatagramPacket(buf, 4)).getType(),
+                "a wide ACK must be exactly five bytes");
+    }
+
+    /*
+     * a SACK carries a wide cumulative block and a bitmap of the
+     * blocks after it that arrived, which the view reads back.
+     */
+    @Test
+    @DisplayName("test SACK")
+    void testSACK() {
+        byte[] buf = new byte[16];
+        int len = TftpPacket.encodeSACK(buf, 0, 70000, 10);
+        assertEquals(7, len, "ten bits take two bytes");
+        TftpPacket.setSACKBit(buf, 0, 1);
+        TftpPacket.setSACKBit(buf, 0, 9);
+        TftpPacket.View view = new TftpPacket.View().wrap(new DatagramPacket(buf, len));
+        assertEquals(TftpPacket.Type.SACK, view.getType());
+        assertTrue(view.isWide());
+        assertEquals(70000, view.getBlock());
+        assertEquals(16, view.getSackBits());
+        for (int i = 0; i < 16; i++) {
+            assertEquals(i == 1 || i == 9, view.isSacked(i), "bit " + i);
+        }
+
+        len = TftpPacket.encodeSACK(buf, 0, 5, 0);
+        assertEquals(5, len, "a SACK of nothing is a cumulative ACK");
+        assertEquals(0, view.wrap(new DatagramPacket(buf, len)).getSackBits());
+        assertEquals(-1, TftpPacket.encodeSACK(buf, 0, 5, 100), "too small");
+    }
 }
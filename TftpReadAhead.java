@@ -0,0 +1,67 @@
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * reads the files being served ahead of their transfers, so that a
+ * block that is not in the page cache yet is read from disk while the
+ * transfer waits for the ACKs of the blocks before it, rather than
+ * when it comes to send it.  a file is served from a mapping, so
+ * reading ahead is touching the pages of the mapping beyond where the
+ * transfer has got to, on threads of our own, which blocks them
+ * rather than the transfer while the disk catches up.
+ *
+ * each TftpBlockSource keeps its own depth: how far ahead of the block
+ * being sent it reads.  the depth starts at MIN_DEPTH.  it doubles, up
+ * to MAX_DEPTH, after a read that finishes once the transfer has
+ * already got to it, which counts as a stall, and halves, down to
+ * MIN_DEPTH again, after one that finishes well before the transfer
+ * gets to it.  so a slow disk (or a network filesystem) gets a deep
+ * read-ahead, a fast one a shallow one, and a transfer that was slowed
+ * once does not keep a deep one for good.  the blocks of a file
+ * already in the cache are in memory, and are not read ahead.
+ */
+class TftpReadAhead
+{
+    static final long MIN_DEPTH = 256L << 10;
+    static final long MAX_DEPTH = 16L << 20;
+
+    /* the size of a page; touching one byte of each reads it in */
+    static final int PAGE = 4096;
+
+    /* how many threads read ahead for all transfers by default */
+    static final int DEFAULT_THREADS = 4;
+
+    private final Executor io;
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+
+    /* read ahead on a pool of threads of our own */
+    TftpReadAhead(int threads)
+    {
+        this(Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "TftpReadAhead");
+            t.setDaemon(true);
+            return t;
+        }));
+    }
+
+    TftpReadAhead(Executor io)
+    {
+        this.io = io;
+    }
+
+    void execute(Runnable r) { io.execute(r); }
+
+    /* called by sources as things happen */
+    void read(long n) { bytes.add(n); }
+    void stalled() { stalls.increment(); }
+
+    public long getBytes() { return bytes.sum(); }
+    public long getStalls() { return stalls.sum(); }
+
+    public String toString()
+    {
+        return "readahead " + getBytes() + " bytes " + getStalls() + " stalls";
+    }
+}
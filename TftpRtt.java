@@ -0,0 +1,68 @@
+/*
+ * an estimate of a transfer's round trip time, and the retransmission
+ * timeout that follows from it, computed the way TCP does (RFC 6298).
+ * each sample updates a smoothed round trip time and its variance,
+ * and the timeout is the smoothed time plus four times the variance.
+ * every timeout doubles it (exponential backoff) until a new sample
+ * arrives.
+ *
+ * by Karn's rule, the caller must not sample a packet that it had to
+ * retransmit, since it cannot tell which copy the reply was for.
+ *
+ * all times are in nanoseconds.
+ */
+class TftpRtt
+{
+    /* the timeout before we have any samples */
+    static final long INITIAL_RTO = 1000L * 1000000L;
+
+    /*
+     * bounds on the timeout.  the lower bound keeps scheduling jitter
+     * on a fast link from being mistaken for loss.
+     */
+    static final long DEFAULT_MIN_RTO = 5L * 1000000L;
+    static final long MAX_RTO = 60L * 1000L * 1000000L;
+
+    private final long minRto;
+    private long srtt = -1;
+    private long rttvar = 0;
+    private long rto;
+
+    TftpRtt(long minRto)
+    {
+        this(INITIAL_RTO, minRto);
+    }
+
+    TftpRtt(long initialRto, long minRto)
+    {
+        this.minRto = minRto;
+        this.rto = Math.max(minRto, Math.min(MAX_RTO, initialRto));
+    }
+
+    public long rto() { return rto; }
+
+    /* the smoothed round trip time, or -1 if there are no samples */
+    public long srtt() { return srtt; }
+    public long rttvar() { return rttvar; }
+
+    /* add a round trip time measured from a packet sent only once */
+    public void sample(long rtt)
+    {
+        if(rtt < 0)
+            return;
+        if(srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar += (Math.abs(srtt - rtt) - rttvar) / 4;
+            srtt += (rtt - srtt) / 8;
+        }
+        rto = Math.max(minRto, Math.min(MAX_RTO, srtt + 4 * rttvar));
+    }
+
+    /* a timeout happened: double the timeout */
+    public void backoff()
+    {
+        rto = Math.min(MAX_RTO, rto * 2);
+    }
+}
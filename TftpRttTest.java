@@ -0,0 +1,55 @@
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TftpRttTest
+{
+    static final long MS = 1000000L;
+
+    /*
+     * before any samples the timeout is the initial one second; after
+     * a steady stream of identical samples it converges on the sample
+     * (the variance decays), but never drops below the minimum.
+     */
+    @Test
+    @DisplayName("test convergence")
+    void testConvergence() {
+        TftpRtt rtt = new TftpRtt(5 * MS);
+        assertEquals(TftpRtt.INITIAL_RTO, rtt.rto());
+
+        rtt.sample(20 * MS);
+        assertEquals(20 * MS, rtt.srtt());
+        assertEquals(20 * MS + 4 * 10 * MS, rtt.rto(), "first sample: srtt + 4 * rtt/2");
+
+        for(int i = 0; i < 100; i++) {
+            rtt.sample(20 * MS);
+        }
+        assertTrue(rtt.rto() < 21 * MS, "variance decays");
+        assertTrue(rtt.rto() >= 20 * MS);
+
+        for(int i = 0; i < 100; i++) {
+            rtt.sample(100000);     /* 0.1ms, like loopback */
+        }
+        assertEquals(5 * MS, rtt.rto(), "clamped to the minimum");
+    }
+
+    /*
+     * each timeout doubles the timeout, up to the maximum, and the
+     * next sample brings it back down.
+     */
+    @Test
+    @DisplayName("test backoff")
+    void testBackoff() {
+        TftpRtt rtt = new TftpRtt(10 * MS, 1 * MS);
+        rtt.backoff();
+        rtt.backoff();
+        assertEquals(40 * MS, rtt.rto());
+        for(int i = 0; i < 100; i++) {
+            rtt.backoff();
+        }
+        assertEquals(TftpRtt.MAX_RTO, rtt.rto());
+        rtt.sample(2 * MS);
+        assertEquals(2 * MS + 4 * 1 * MS, rtt.rto());
+    }
+}
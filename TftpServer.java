@@ -1,192 +1,341 @@
 //Shifaz Ali, 1323080
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.net.*;
+import java.lang.reflect.Method;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
 
-class TftpServerWorker extends Thread
+class TftpServerWorker implements Runnable
 {
     private DatagramPacket req;
+    private TftpServerConfig config;
+    private Semaphore slots;
+    private TftpTransport listener;
 
     public void run()
     {
-        DatagramSocket ds;
+        TftpTransport t = null;
+        TftpTransfer transfer = null;
         try {
-            /* parse the request packet, ensuring that it is an RRQ.*/
-            TftpPacket.Type reqType = TftpPacket.parse(req).getType();
-
             /*
-             * make a note of the address and port the client's request
-             * came from
+             * open a transport of our own (a new port, on the same
+             * network as the listener) to send on, connected to the
+             * address and port the client's request came from, so
+             * that we only hear from that client.  on UDP this is a
+             * connected channel, which lets the transfer send DATA as
+             * a header and a view of the file in one gathering write.
+             * the transfer keeps track of how long to wait for each
+             * ACK.  a multicast transfer also sends to the group, so
+             * its transport is not connected, and sends to the group
+             * out of the interface the client is reached through.
              */
-            InetAddress clientAddress = req.getAddress();
-            int clientPort = req.getPort();
-
-            /* create a datagram socket to send on, setSoTimeout to 1s (1000ms) */
-            ds = new DatagramSocket();
-            ds.setSoTimeout(1000);
-
-            String filename = TftpPacket.parse(req).getFilename();
-            if(reqType.equals(TftpPacket.Type.RRQ)){
-
-                /* try to open the file.  if not found, send an error */
-                File file = new File(filename);
-                if(!file.exists()){
-                    DatagramPacket error = TftpPacket.createERROR(clientAddress, clientPort, filename);
-                    ds.send(error);
-                }
-            }
+            t = listener.open();
+            final InetSocketAddress client = (InetSocketAddress) req.getSocketAddress();
+            transfer = new TftpTransfer(req, config);
+            if(transfer.isMulticast())
+                t.setMulticastInterface(client.getAddress());
+            else
+                t.connect(client);
+            TftpTransfer.Sender out = t::send;
+            transfer.start(out);
 
             /*
-             * Allocate a txbuf byte buffer 512 bytes in size to read
-             * chunks of a file into, and declare an integer that keeps
-             * track of the current block number initialized to one.
-             *
-             * allocate a rxbuf byte buffer 2 bytes in size to receive
-             * TFTP ack packets into, and then allocate a DatagramPacket
-             * backed by that rxbuf to pass to the DatagramSocket::receive
+             * allocate a rxbuf byte buffer to receive TFTP ack packets
+             * into: big enough for a SACK covering the widest window,
+             * so that a longer packet is not cut down to something
+             * that looks like an ACK.  then allocate a DatagramPacket
+             * backed by that rxbuf to pass to the transport's receive
              * method
              */
-            byte[] txBuf = new byte[512];
-            int currentBlock = 1;
-            byte[] rxBuf = new byte[2];
+            byte[] rxBuf = new byte[1472];
             DatagramPacket packetAck = new DatagramPacket(rxBuf, rxBuf.length);
-            ds.receive(packetAck);
-
-            FileInputStream fis;
-            while(true) {
-                /*
-                 * read a chunk from the file, and make a note of the size
-                 * read.  if we get EOF, signalled by
-                 * FileInputStream::read returning -1, then set the chunk
-                 * size to zero to cause an empty block to be sent.
-                 */
-                fis = new FileInputStream(filename);
-                int size = fis.read(txBuf);
-
-                if(size == -1){
-                    DatagramPacket emptyPacket = new DatagramPacket(new byte[0], 0);
-                    ds.send(emptyPacket);
-                }
-
-                /*
-                 * use TftpPacket.createData to create a DATA packet
-                 * addressed to the client's address and port, specifying
-                 * the block number, the contents of the block, and the
-                 * size of the block
-                 */
-                DatagramPacket dataPack = TftpPacket.createDATA(clientAddress, clientPort, currentBlock, txBuf, size);
-
-                /*
-                 * declare a boolean value to control transmission through
-                 * each loop, and an integer to count the number of
-                 * transmission attempts made with the current block.
-                 */
-                boolean control = true;
-                int attempts = 0;
-
-                while(control) {
-
-                    /*
-                     * if we are to transmit the packet this pass through
-                     * the loop, send the packet and increment the number
-                     * of attempts we have made with this block.  set the
-                     * boolean value to false to prevent the packet being
-                     * retransmitted except on a SocketTimeoutException,
-                     * noted below.
-                     */
-                    ds.send(dataPack);
-                    attempts++;
-                    control = false;
-
-                    /*
-                     * call receive, looking for an ACK for the current
-                     * block number.  if we get an ack, break out of the
-                     * retransmission loop.  otherwise, if we get a
-                     * SocketTimeoutException, set the boolean value to
-                     * true.  if we have tried five times, then we break
-                     * out of the loop to give up.
-                     */
-                   try{
-                       ds.receive(packetAck);
-                       if(currentBlock == TftpPacket.parse(packetAck).getBlock()){
-                           if(TftpPacket.Type.ACK.equals(TftpPacket.parse(packetAck).getType())) {
-                                break;
-                           }
-                       }
-                       if(attempts == 5){
-                           break;
-                       }
-                   }catch (SocketTimeoutException s){
-                       System.err.println("Error: " + s);
-                       control = true;
-                   }
+            TftpPacket.View view = new TftpPacket.View();
 
+            /*
+             * call receive, with the timeout set to the time
+             * left before the transfer's deadline, and pass any ACK to
+             * the transfer.  if we get a SocketTimeoutException, let
+             * the transfer retransmit (or give up).  when the pacer
+             * holds the transfer back for less than the socket's one
+             * millisecond timeout granularity, park instead, so a paced
+             * transfer still gets its full rate.
+             */
+            while(!transfer.isDone()) {
+                long wait = transfer.deadline() - System.nanoTime();
+                if(wait <= 0){
+                    transfer.timeout(out);
+                    continue;
                 }
-
-                /*
-                 * outside of the loop, determine if we just sent our last
-                 * transmission (the block size was less than 512 bytes,
-                 * or we tried five times without getting an ack
-                 */
-                if(size < 512 && size > 0 || attempts == 5){
-                    break;
+                if(transfer.isPaced() && wait < 1000000){
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                try {
+                    t.receive(packetAck, (int)Math.max(1, wait / 1000000));
+                    if(transfer.isMulticast() && !client.equals(packetAck.getSocketAddress()))
+                        continue;
+                    transfer.receive(view.wrap(packetAck), out);
+                } catch (SocketTimeoutException s) {
+                    if(!transfer.isPaced())
+                        System.err.println("Error: " + s);
                 }
-
-                /*
-                 * use TftpPacket.nextBlock to determine the next block
-                 * number to use.
-                 */
-                currentBlock = TftpPacket.nextBlock(currentBlock);
             }
-
-            /* cleanup: close the FileInputStream and the DatagramSocket */
-            fis.close();
-            ds.close();
-            return;
-
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            /*
+             * cleanup: close the file and the transport, and let the
+             * client's next request in
+             */
+            if(transfer != null)
+                transfer.close();
+            if(t != null)
+                t.close();
+            config.sessions.close((InetSocketAddress) req.getSocketAddress(), req.getData());
+            slots.release();
         }
     }
 
-    public TftpServerWorker(DatagramPacket req)
+    /*
+     * the worker owns one of the server's transfer slots, and the
+     * client's entry in the session table, whose copy of the request
+     * req holds, which it gives back when the transfer is over.  it
+     * opens its transport alongside the listener that received the
+     * request.
+     */
+    public TftpServerWorker(DatagramPacket req, TftpServerConfig config,
+                            Semaphore slots, TftpTransport listener)
     {
         this.req = req;
+        this.config = config;
+        this.slots = slots;
+        this.listener = listener;
     }
 }
 
 class TftpServer
 {
-    public static void main(String[] args)
+    /*
+     * create the executor that runs worker threads.  on a JVM with
+     * virtual threads (Java 21 and later) each worker gets a virtual
+     * thread, so blocking in receive costs no platform thread;
+     * otherwise fall back to a pool of platform threads.  this is
+     * looked up reflectively so the server still builds and runs on
+     * older JVMs.
+     */
+    static ExecutorService workerExecutor()
+    {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch(ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /*
+     * start a daemon thread that prints the server's counters every
+     * so many seconds.
+     */
+    static void printStats(final TftpServerConfig config)
+    {
+        Thread t = new Thread(() -> {
+            try {
+                while(true) {
+                    Thread.sleep(config.statsSeconds * 1000L);
+                    System.out.println(config.stats());
+                }
+            } catch(InterruptedException e) {
+                return;
+            }
+        }, "TftpStats");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /*
+     * start a daemon thread that reads commands from standard input,
+     * so the send rates can be changed while the server runs:
+     *   rate <bytes>        per-transfer rate, 0 for unlimited
+     *   globalrate <bytes>  rate of all transfers together
+     *   stats               print the server's counters
+     */
+    static void console(final TftpServerConfig config)
+    {
+        Thread t = new Thread(() -> {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            try {
+                String line;
+                while((line = in.readLine()) != null) {
+                    String[] w = line.trim().split("\\s+");
+                    try {
+                        if(w.length == 2 && w[0].equals("rate"))
+                            config.pacer.setTransferRate(TftpServerConfig.parseSize(w[1]));
+                        else if(w.length == 2 && w[0].equals("globalrate"))
+                            config.pacer.setGlobalRate(TftpServerConfig.parseSize(w[1]));
+                        else if(!(w.length == 1 && w[0].equals("stats"))) {
+                            if(!w[0].isEmpty())
+                                System.err.println("commands: rate <bytes>, globalrate <bytes>, stats");
+                            continue;
+                        }
+                        System.out.println(config.stats());
+                    } catch(NumberFormatException e) {
+                        System.err.println("bad number: " + line);
+                    }
+                }
+            } catch(IOException e) {
+                return;
+            }
+        }, "TftpConsole");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /*
+     * run the thread engine's listener on ds: receive each request
+     * and hand it to a worker.  with -listeners, ds is shared with
+     * more transports on its port (it must have been bound to allow
+     * that), and each is a shard with a thread of its own to receive
+     * on and an executor of its own for its workers; all of them draw
+     * on the one set of transfer slots.  returns (by throwing) when ds
+     * is closed.
+     */
+    static void serve(TftpTransport ds, TftpServerConfig config) throws IOException
     {
+        final Semaphore slots = new Semaphore(config.maxTransfers);
+        List<TftpTransport> shards = new ArrayList<TftpTransport>();
         try {
+            for(int i = 1; i < config.listeners; i++) {
+                final TftpTransport shard = ds.share();
+                shards.add(shard);
+                Thread t = new Thread(() -> {
+                    try {
+                        shard(shard, config, slots);
+                    } catch(IOException e) {
+                        /* the shard was closed */
+                    }
+                }, "TftpListener-" + i);
+                t.setDaemon(true);
+                t.start();
+            }
+            shard(ds, config, slots);
+        } finally {
+            for(TftpTransport shard : shards)
+                shard.close();
+        }
+    }
+
+    private static void shard(TftpTransport ds, TftpServerConfig config,
+                              Semaphore slots) throws IOException
+    {
+        ExecutorService executor = workerExecutor();
+        try {
+            listen(ds, config, executor, slots);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void listen(TftpTransport ds, TftpServerConfig config,
+                               ExecutorService executor, Semaphore slots) throws IOException
+    {
+        /*
+         * allocate a byte buffer to back a DatagramPacket with.  I
+         * suggest 1472 byte array for this.  allocate the
+         * corresponding DatagramPacket.  every packet is received
+         * into it; a request gets a copy of its own, since the worker
+         * reads it after we have gone back to receive the next one.
+         */
+        byte[] buf = new byte[1472];
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
+        TftpPacket.View view = new TftpPacket.View();
+        while(true) {
+            p.setLength(buf.length);
+            ds.receive(p, 0);
+
             /*
-             * allocate a DatagramSocket, and find out what port it is
-             * listening on
+             * anything but an RRQ is dropped here, as is an RRQ a
+             * client resent for a transfer we are already running,
+             * rather than costing a worker each.
              */
-            DatagramSocket ds = new DatagramSocket();
-            System.out.println("TftpServer on port " + ds.getLocalPort());
+            if(view.wrap(p).getType() != TftpPacket.Type.RRQ) {
+                config.metrics.strayPacket();
+                continue;
+            }
+            InetSocketAddress client = (InetSocketAddress) p.getSocketAddress();
+            byte[] request = config.sessions.open(client, buf, p.getOffset(), p.getLength());
+            if(request == null) {
+                config.metrics.duplicateRequest();
+                continue;
+            }
+
+            /*
+             * if every transfer slot is taken, refuse the request
+             * straight away rather than letting it queue; the
+             * client can try again later.
+             */
+            if(!slots.tryAcquire()) {
+                config.sessions.close(client, request);
+                DatagramPacket busy = TftpPacket.createERROR(p.getAddress(), p.getPort(),
+                                                             "server busy, try again later");
+                if(busy != null)
+                    ds.send(busy);
+                continue;
+            }
 
-            byte[] buf = new byte[1472];
-            for(int i = 0; i < buf.length; i ++) {
-                /*
-                 * allocate a byte buffer to back a DatagramPacket
-                 * with.  I suggest 1472 byte array for this.
-                 * allocate the corresponding DatagramPacket, and call
-                 * DatagramSocket::receive
-                 */
-                DatagramPacket p = new DatagramPacket(buf, 1472);
-                ds.receive(p);
-
-                /*
-                 * allocate a new worker thread to process this
-                 * packet.  implement the logic looking for a RRQ in
-                 * the worker thread's run method.
-                 */
-                TftpServerWorker worker = new TftpServerWorker(p);
-                worker.start();
+            /*
+             * hand the request to a new worker to process on the
+             * executor.  implement the logic looking for a RRQ in
+             * the worker's run method.
+             */
+            DatagramPacket req = new DatagramPacket(request, request.length, client);
+            executor.execute(new TftpServerWorker(req, config, slots, ds));
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        TftpServerConfig config = TftpServerConfig.parse(args);
+        if(config == null) {
+            System.err.println(TftpServerConfig.USAGE);
+            return;
+        }
+        if(config.statsSeconds > 0)
+            printStats(config);
+        console(config);
+
+        try {
+            TftpMetricsEndpoint.register(config);
+            if(config.metricsPort > 0)
+                TftpMetricsEndpoint.serve(config.metrics, config.metricsPort);
+
+            if(config.engine.equals("nio")) {
+                DatagramChannel[] chs = new DatagramChannel[config.listeners];
+                boolean shared = chs.length > 1;
+                chs[0] = TftpUdpTransport.bind(null, shared);
+                int port = chs[0].socket().getLocalPort();
+                for(int i = 1; i < chs.length; i++)
+                    chs[i] = TftpUdpTransport.bind(new InetSocketAddress(port), shared);
+                System.out.println("TftpServer on port " + port);
+                new TftpNioServer(chs, config).run();
+                return;
             }
+
+            /*
+             * allocate a UDP transport, which others may share if
+             * there are to be several listeners, and find out what
+             * port it is listening on
+             */
+            TftpTransport ds = new TftpUdpTransport(null, config.listeners > 1);
+            System.out.println("TftpServer on port " + ds.getLocalPort());
+            serve(ds, config);
         }
         catch(Exception e) {
             System.err.println("TftpServer::main Exception: " + e);
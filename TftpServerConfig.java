@@ -0,0 +1,208 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * the server's settings, parsed from the command line, and the
+ * server-wide state that every transfer shares.
+ */
+class TftpServerConfig
+{
+    /* how many transfers the thread engine runs at once by default */
+    static final int DEFAULT_MAX_TRANSFERS = 1024;
+
+    /* the default memory budget of the file cache */
+    static final long DEFAULT_CACHE_BYTES = 64L << 20;
+
+    String engine = "thread";
+    int loops = 1;
+    int listeners = 1;
+    int maxTransfers = DEFAULT_MAX_TRANSFERS;
+    long cacheBytes = DEFAULT_CACHE_BYTES;
+    long compressBytes = DEFAULT_CACHE_BYTES;
+    int readAheadThreads = TftpReadAhead.DEFAULT_THREADS;
+    int statsSeconds = 0;
+
+    /* the port of the metrics endpoint on loopback; 0 means none */
+    int metricsPort = 0;
+
+    /*
+     * how many retransmissions a transfer makes without progress
+     * before giving up, and the smallest retransmission timeout it
+     * may use.
+     */
+    int maxAttempts = 5;
+    long minRtoNanos = TftpRtt.DEFAULT_MIN_RTO;
+
+    /*
+     * send rate limits in bytes per second, for each transfer and for
+     * the whole server; 0 means unlimited.
+     */
+    long transferRate = 0;
+    long globalRate = 0;
+
+    /* the file cache, or null if -cache 0 turned it off */
+    TftpBlockCache cache = null;
+
+    /* compressed files, or null if -compress 0 turned compression off */
+    TftpDeflateCache deflateCache = null;
+
+    /* reads mapped files ahead of their transfers, or null if -readahead 0 */
+    TftpReadAhead readAhead = null;
+
+    /* the digests of files, by algorithm */
+    final Map<String,TftpDigestCache> digests = new LinkedHashMap<String,TftpDigestCache>();
+
+    /* paces every transfer's sends; its rates may be changed at run time */
+    TftpPacer pacer = null;
+
+    /* counters that every transfer updates */
+    final TftpMetrics metrics = new TftpMetrics();
+
+    /* the requests being served, by client */
+    final TftpSessionTable sessions = new TftpSessionTable();
+
+    /* the multicast sessions, or null if no -multicast group was given */
+    TftpMulticast multicast = null;
+
+    static final String USAGE =
+        "usage: TftpServer [-engine thread|nio] [-loops n] [-listeners n]\n" +
+        "                  [-maxtransfers n]\n" +
+        "                  [-cache bytes] [-compress bytes] [-readahead threads]\n" +
+        "                  [-stats seconds]\n" +
+        "                  [-attempts n] [-minrto ms]\n" +
+        "                  [-rate bytes] [-globalrate bytes]\n" +
+        "                  [-metrics port] [-multicast address:port]\n";
+
+    /*
+     * process the command line.  -engine picks how transfers are run:
+     * "thread" (the default) gives each transfer its own worker
+     * thread and blocking socket, while "nio" runs them all as state
+     * machines on -loops event loop threads.  -listeners opens that
+     * many sockets on the server's port with SO_REUSEPORT, so the
+     * kernel spreads clients across them, each receiving requests on
+     * a thread of its own (on the nio engine, listener i belongs to
+     * loop i modulo -loops, which starts the requests it receives).
+     * with the thread engine,
+     * -maxtransfers caps how many transfers may be in flight; requests
+     * beyond that are refused with an ERROR.  -cache sets the memory
+     * budget of the shared file cache (with an optional k, m or g
+     * suffix; 0 turns it off), -compress that of the cache of
+     * compressed files served to clients that ask for them (0 turns
+     * compression off).  files too big to cache are read ahead of
+     * their transfers on -readahead threads (0 turns it off), and
+     * -stats prints the server's counters
+     * every so many seconds.  each transfer times its ACKs to set its
+     * retransmission timeout, which is never less than -minrto
+     * milliseconds, and gives up after -attempts timeouts in a row.
+     * -rate caps how many bytes per second each transfer sends, and
+     * -globalrate how many all transfers send together (both with an
+     * optional k, m or g suffix; 0, the default, is unlimited).
+     * -metrics serves the server's metrics as text at
+     * http://127.0.0.1:port/metrics (they are always available over
+     * JMX).  -multicast lets clients that ask for it share a
+     * transfer of the same file, which is sent once to the given
+     * group.  returns null if the command line is not valid.
+     */
+    static TftpServerConfig parse(String[] args)
+    {
+        TftpServerConfig c = new TftpServerConfig();
+        try {
+            for(int i = 0; i < args.length; i += 2) {
+                if(i + 1 >= args.length)
+                    return null;
+                String v = args[i+1];
+                if(args[i].equals("-engine"))
+                    c.engine = v;
+                else if(args[i].equals("-loops"))
+                    c.loops = Integer.parseInt(v);
+                else if(args[i].equals("-listeners"))
+                    c.listeners = Integer.parseInt(v);
+                else if(args[i].equals("-maxtransfers"))
+                    c.maxTransfers = Integer.parseInt(v);
+                else if(args[i].equals("-cache"))
+                    c.cacheBytes = parseSize(v);
+                else if(args[i].equals("-compress"))
+                    c.compressBytes = parseSize(v);
+                else if(args[i].equals("-readahead"))
+                    c.readAheadThreads = Integer.parseInt(v);
+                else if(args[i].equals("-stats"))
+                    c.statsSeconds = Integer.parseInt(v);
+                else if(args[i].equals("-attempts"))
+                    c.maxAttempts = Integer.parseInt(v);
+                else if(args[i].equals("-minrto"))
+                    c.minRtoNanos = Long.parseLong(v) * 1000000L;
+                else if(args[i].equals("-rate"))
+                    c.transferRate = parseSize(v);
+                else if(args[i].equals("-globalrate"))
+                    c.globalRate = parseSize(v);
+                else if(args[i].equals("-metrics"))
+                    c.metricsPort = Integer.parseInt(v);
+                else if(args[i].equals("-multicast"))
+                    c.multicast = new TftpMulticast(parseGroup(v));
+                else
+                    return null;
+            }
+        } catch(NumberFormatException | UnknownHostException e) {
+            return null;
+        }
+        if(c.loops < 1 || c.listeners < 1 || c.maxTransfers < 1 || c.cacheBytes < 0 || c.compressBytes < 0 ||
+           c.readAheadThreads < 0 || c.statsSeconds < 0 ||
+           c.maxAttempts < 1 || c.minRtoNanos < 0 || c.transferRate < 0 || c.globalRate < 0 ||
+           c.metricsPort < 0 || c.metricsPort > 65535 ||
+           !(c.engine.equals("thread") || c.engine.equals("nio")))
+            return null;
+
+        if(c.cacheBytes > 0)
+            c.cache = new TftpBlockCache(c.cacheBytes);
+        if(c.compressBytes > 0)
+            c.deflateCache = new TftpDeflateCache(c.compressBytes);
+        if(c.readAheadThreads > 0)
+            c.readAhead = new TftpReadAhead(c.readAheadThreads);
+        c.pacer = new TftpPacer(c.transferRate, c.globalRate);
+        for(String a : TftpDigest.ALGORITHMS)
+            c.digests.put(a, new TftpDigestCache(a));
+        return c;
+    }
+
+    /* parse a byte count, such as 4096, 512k, 64m or 2g */
+    static long parseSize(String v)
+    {
+        String s = v.trim().toLowerCase();
+        long mult = 1;
+        if(s.endsWith("k"))
+            mult = 1L << 10;
+        else if(s.endsWith("m"))
+            mult = 1L << 20;
+        else if(s.endsWith("g"))
+            mult = 1L << 30;
+        if(mult != 1)
+            s = s.substring(0, s.length() - 1);
+        return Long.parseLong(s) * mult;
+    }
+
+    /* parse a multicast group and port, such as 239.255.0.69:1758 */
+    static InetSocketAddress parseGroup(String v) throws UnknownHostException
+    {
+        int colon = v.lastIndexOf(':');
+        if(colon < 0)
+            throw new NumberFormatException("no port: " + v);
+        InetAddress a = InetAddress.getByName(v.substring(0, colon));
+        int port = Integer.parseInt(v.substring(colon + 1));
+        if(!a.isMulticastAddress() || port < 1 || port > 65535)
+            throw new NumberFormatException("not a multicast group: " + v);
+        return new InetSocketAddress(a, port);
+    }
+
+    /* a one line summary of the server's counters */
+    String stats()
+    {
+        return metrics + ", " + (cache != null ? cache.toString() : "cache off") +
+            ", compressed " + (deflateCache != null ? deflateCache.toString() : "off") +
+            ", " + (readAhead != null ? readAhead.toString() : "readahead off") +
+            ", rate " + pacer.getTransferRate() + " globalrate " + pacer.getGlobalRate() +
+            (multicast != null ? ", " + multicast : "");
+    }
+}
@@ -0,0 +1,55 @@
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * the requests the server is serving, by the address and port of the
+ * client that sent each one, so the listener can tell a new request
+ * from a client resending one we are already serving because our
+ * first reply was slow or lost.  without it, each resent RRQ starts a
+ * transfer of its own, whose replies the client ignores, since they
+ * come from a port it is not talking to, and which only goes away
+ * once it has timed out.
+ *
+ * a request identical to the live one from the same client is a
+ * duplicate.  a different one means the client has moved on to
+ * another file (as a batch that reuses its sockets does), and
+ * replaces it.  each request is recorded as a copy of its bytes,
+ * which is also the copy the transfer is started from.
+ */
+class TftpSessionTable
+{
+    private final ConcurrentHashMap<InetSocketAddress,byte[]> live =
+        new ConcurrentHashMap<InetSocketAddress,byte[]>();
+
+    /*
+     * record a request of length bytes at off in data from client,
+     * and return a copy of it for the transfer to keep, or null if it
+     * is a duplicate of the request we are serving for the client.
+     */
+    byte[] open(InetSocketAddress client, byte[] data, int off, int length)
+    {
+        byte[] old = live.get(client);
+        if(old != null && Arrays.equals(old, 0, old.length, data, off, off + length))
+            return null;
+        byte[] copy = Arrays.copyOfRange(data, off, off + length);
+        while(true) {
+            old = live.putIfAbsent(client, copy);
+            if(old == null)
+                return copy;
+            if(Arrays.equals(old, copy))
+                return null;
+            if(live.replace(client, old, copy))
+                return copy;
+        }
+    }
+
+    /* the transfer of request, as returned by open, is over */
+    void close(InetSocketAddress client, byte[] request)
+    {
+        live.remove(client, request);
+    }
+
+    /* how many requests are being served */
+    int size() { return live.size(); }
+}
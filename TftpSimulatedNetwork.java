@@ -0,0 +1,383 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * a network that exists only in this process, for testing how
+ * transfers cope with what loopback never does: losing, duplicating
+ * and reordering packets, a long round trip, and a slow link.  every
+ * endpoint opened on it is a TftpTransport on the loopback address
+ * with a port number of its own, so a server and its clients can run
+ * over it unchanged.
+ *
+ * each packet leaves its sender over a link of the configured
+ * bandwidth, so packets queue behind each other, then takes the
+ * configured one-way delay to arrive.  the decisions of what to lose,
+ * duplicate or hold back are drawn from a random number generator
+ * per endpoint, seeded from the network's seed and the endpoint's
+ * port, so the same sequence of packets from an endpoint meets the
+ * same fate on every run.  time is real time, since the transfers
+ * read the clock themselves.
+ *
+ * several endpoints may share a port, as the listeners of a server
+ * with SO_REUSEPORT do.  each sender's packets to the port go to one
+ * of them, picked by a hash of the sender's address.
+ *
+ * endpoints may also join multicast groups.  a packet sent to a group
+ * reaches every endpoint that joined it, each copy lost, duplicated
+ * or held back on its own.
+ */
+class TftpSimulatedNetwork
+{
+    /* the first port endpoints are given */
+    static final int FIRST_PORT = 10000;
+
+    /* chance of each packet being lost, duplicated or held back */
+    double loss = 0;
+    double duplicate = 0;
+    double reorder = 0;
+
+    /* one-way delay, and how much longer a held back packet takes */
+    long delayNanos = 0;
+    long reorderNanos = 0;
+
+    /* each endpoint's sending bandwidth in bytes per second; 0 is unlimited */
+    long bandwidth = 0;
+
+    private final long seed;
+    private final InetAddress host = InetAddress.getLoopbackAddress();
+    private final Map<Integer,Endpoint> endpoints = new HashMap<Integer,Endpoint>();
+    private final Map<Integer,List<Endpoint>> shared = new HashMap<Integer,List<Endpoint>>();
+    private final Map<InetSocketAddress,List<Endpoint>> groups =
+        new HashMap<InetSocketAddress,List<Endpoint>>();
+    private int nextPort = FIRST_PORT;
+
+    /* what happened to the packets sent so far, guarded by this */
+    private long sent = 0;
+    private long lost = 0;
+    private long duplicated = 0;
+    private long reordered = 0;
+
+    TftpSimulatedNetwork(long seed)
+    {
+        this.seed = seed;
+    }
+
+    /* a round trip time of rtt, with half of it each way */
+    TftpSimulatedNetwork rtt(long nanos)
+    {
+        delayNanos = nanos / 2;
+        return this;
+    }
+
+    /* a new endpoint, on the next free port */
+    synchronized TftpTransport open()
+    {
+        Endpoint e = new Endpoint(nextPort++);
+        endpoints.put(e.port, e);
+        return e;
+    }
+
+    /* a new endpoint that is also a member of the group */
+    synchronized TftpTransport join(InetSocketAddress group)
+    {
+        Endpoint e = (Endpoint) open();
+        e.group = group;
+        groups.computeIfAbsent(group, g -> new ArrayList<Endpoint>()).add(e);
+        return e;
+    }
+
+    /* a new endpoint on the port of e, which shares it with e */
+    private synchronized TftpTransport share(Endpoint e)
+    {
+        List<Endpoint> s = shared.get(e.port);
+        if(s == null){
+            s = new ArrayList<Endpoint>();
+            s.add(e);
+            shared.put(e.port, s);
+        }
+        Endpoint n = new Endpoint(e.port);
+        s.add(n);
+        return n;
+    }
+
+    synchronized long sent() { return sent; }
+    synchronized long lost() { return lost; }
+    synchronized long duplicated() { return duplicated; }
+    synchronized long reordered() { return reordered; }
+
+    public synchronized String toString()
+    {
+        return sent + " sent, " + lost + " lost, " + duplicated + " duplicated, " +
+            reordered + " reordered";
+    }
+
+    private synchronized Endpoint lookup(InetSocketAddress to, InetSocketAddress from)
+    {
+        if(!to.getAddress().equals(host))
+            return null;
+        List<Endpoint> s = shared.get(to.getPort());
+        if(s != null)
+            return s.get(Math.floorMod(from.hashCode(), s.size()));
+        return endpoints.get(to.getPort());
+    }
+
+    private synchronized List<Endpoint> members(InetSocketAddress group)
+    {
+        List<Endpoint> members = groups.get(group);
+        return members != null ? new ArrayList<Endpoint>(members) : Collections.<Endpoint>emptyList();
+    }
+
+    private synchronized void closed(Endpoint e)
+    {
+        endpoints.remove(e.port, e);
+        List<Endpoint> s = shared.get(e.port);
+        if(s != null){
+            s.remove(e);
+            if(s.isEmpty())
+                shared.remove(e.port);
+        }
+        if(e.group != null)
+            groups.get(e.group).remove(e);
+    }
+
+    /*
+     * send a packet of n bytes over from's link: return when it has
+     * left, and count it.  a packet to a group leaves once.
+     */
+    private synchronized long depart(Endpoint from, int n, long now)
+    {
+        sent++;
+        long start = Math.max(now, from.linkFreeAt);
+        long departs = start + (bandwidth > 0 ? n * 1000000000L / bandwidth : 0);
+        from.linkFreeAt = departs;
+        return departs;
+    }
+
+    /*
+     * work out the fate of a packet from from that left at departs,
+     * on its way to one receiver: return the times at which copies of
+     * it arrive, none if it is lost, and count what happened to it.
+     */
+    private synchronized long[] route(Endpoint from, long departs)
+    {
+        Random r = from.random;
+        if(r.nextDouble() < loss){
+            lost++;
+            return new long[0];
+        }
+        long arrives = departs + delayNanos;
+        if(r.nextDouble() < reorder){
+            reordered++;
+            arrives += reorderNanos;
+        }
+        if(r.nextDouble() < duplicate){
+            duplicated++;
+            return new long[] { arrives, arrives + 1 };
+        }
+        return new long[] { arrives };
+    }
+
+    /* a packet on its way to an endpoint */
+    private static final class Arrival implements Comparable<Arrival>
+    {
+        final long at;
+        final long seq;
+        final InetSocketAddress from;
+        final byte[] data;
+
+        Arrival(long at, long seq, InetSocketAddress from, byte[] data)
+        {
+            this.at = at;
+            this.seq = seq;
+            this.from = from;
+            this.data = data;
+        }
+
+        public int compareTo(Arrival o)
+        {
+            if(at != o.at)
+                return Long.compare(at, o.at);
+            return Long.compare(seq, o.seq);
+        }
+    }
+
+    /*
+     * one port on the network.  packets sent to it wait in a queue
+     * ordered by arrival time until they are due, then receive hands
+     * them out in that order.
+     */
+    private final class Endpoint implements TftpTransport
+    {
+        final int port;
+        final InetSocketAddress address;
+        final Random random;
+
+        /* when the endpoint's sending link is next idle, guarded by the network */
+        long linkFreeAt = 0;
+
+        /* the group the endpoint joined, if any */
+        InetSocketAddress group = null;
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final PriorityQueue<Arrival> queue = new PriorityQueue<Arrival>();
+        private long seq = 0;
+        private volatile boolean closed = false;
+        private volatile InetSocketAddress peer = null;
+
+        Endpoint(int port)
+        {
+            this.port = port;
+            this.address = new InetSocketAddress(host, port);
+            this.random = new Random(seed * 65537 + port);
+        }
+
+        public void send(ByteBuffer[] packet, InetSocketAddress to) throws IOException
+        {
+            if(closed)
+                throw new SocketException("closed");
+            int n = 0;
+            for(ByteBuffer b : packet)
+                n += b.remaining();
+            byte[] data = new byte[n];
+            int off = 0;
+            for(ByteBuffer b : packet) {
+                int len = b.remaining();
+                b.get(data, off, len);
+                off += len;
+            }
+            deliver(data, to);
+        }
+
+        public void send(DatagramPacket p) throws IOException
+        {
+            if(closed)
+                throw new SocketException("closed");
+            byte[] data = new byte[p.getLength()];
+            System.arraycopy(p.getData(), p.getOffset(), data, 0, data.length);
+            deliver(data, (InetSocketAddress) p.getSocketAddress());
+        }
+
+        /*
+         * a packet to a group leaves once, and then each member meets
+         * its own fate, as if at the end of a path of its own.
+         */
+        private void deliver(byte[] data, InetSocketAddress to)
+        {
+            long departs = depart(this, data.length, System.nanoTime());
+            if(to.getAddress().isMulticastAddress()){
+                for(Endpoint dst : members(to))
+                    for(long at : route(this, departs))
+                        dst.arrive(at, address, data);
+                return;
+            }
+            long[] times = route(this, departs);
+            Endpoint dst = lookup(to, address);
+            if(dst != null)
+                for(long at : times)
+                    dst.arrive(at, address, data);
+        }
+
+        void arrive(long at, InetSocketAddress from, byte[] data)
+        {
+            lock.lock();
+            try {
+                queue.add(new Arrival(at, seq++, from, data));
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void receive(DatagramPacket p, int timeoutMillis) throws IOException
+        {
+            long deadline = timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1000000L
+                                              : Long.MAX_VALUE;
+            lock.lock();
+            try {
+                while(true) {
+                    if(closed)
+                        throw new SocketException("closed");
+                    long now = System.nanoTime();
+                    Arrival a = queue.peek();
+                    if(a != null && a.at <= now){
+                        queue.poll();
+                        if(peer != null && !peer.equals(a.from))
+                            continue;
+                        int n = Math.min(a.data.length, p.getData().length - p.getOffset());
+                        System.arraycopy(a.data, 0, p.getData(), p.getOffset(), n);
+                        p.setLength(n);
+                        p.setSocketAddress(a.from);
+                        return;
+                    }
+                    long until = a != null ? Math.min(a.at, deadline) : deadline;
+                    if(now >= deadline)
+                        throw new SocketTimeoutException("Receive timed out");
+                    if(until == Long.MAX_VALUE)
+                        changed.await();
+                    else
+                        changed.awaitNanos(until - now);
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SocketException("interrupted");
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void connect(InetSocketAddress to)
+        {
+            peer = to;
+        }
+
+        /* the queue is unbounded, so there is nothing to reserve */
+        public void setReceiveBufferSize(int bytes) {}
+
+        public int getLocalPort() { return port; }
+
+        public TftpTransport open()
+        {
+            return TftpSimulatedNetwork.this.open();
+        }
+
+        public TftpTransport share()
+        {
+            return TftpSimulatedNetwork.this.share(this);
+        }
+
+        public TftpTransport join(InetSocketAddress group, InetAddress via)
+        {
+            return TftpSimulatedNetwork.this.join(group);
+        }
+
+        /* every endpoint is on the one network, so there is no choice to make */
+        public void setMulticastInterface(InetAddress via) {}
+
+        public void close()
+        {
+            closed(this);
+            lock.lock();
+            try {
+                closed = true;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,739 @@
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TftpSimulatedNetworkTest
+{
+    static final long MS = 1000000L;
+
+    /*
+     * start the thread engine on the network, as the real server
+     * would; closing the listener it returns stops it.
+     */
+    private static TftpTransport serve(TftpSimulatedNetwork net, String... args) {
+        return serve(net, TftpServerConfig.parse(args));
+    }
+
+    private static TftpTransport serve(TftpSimulatedNetwork net, TftpServerConfig config) {
+        return serve(net.open(), config);
+    }
+
+    private static TftpTransport serve(final TftpTransport server, final TftpServerConfig config) {
+        Thread t = new Thread(() -> {
+            try {
+                TftpServer.serve(server, config);
+            } catch(IOException e) {
+                /* the listener was closed */
+            }
+        }, "TftpServer");
+        t.setDaemon(true);
+        t.start();
+        return server;
+    }
+
+    /*
+     * a download of f from server into a temporary file, with the
+     * given window and block size; anything else is set on it before
+     * it is run, or handed to fetch.
+     */
+    private static TftpDownload download(TftpTransport server, File f,
+                                         int window, int blksize) throws IOException {
+        TftpDownload d = new TftpDownload(InetAddress.getLoopbackAddress(), server.getLocalPort(),
+                                          f.getAbsolutePath(), TftpTestFiles.temp());
+        d.window = window;
+        d.blksize = blksize;
+        return d;
+    }
+
+    /* run d over the network, check that its file arrived intact, and return it */
+    private static TftpDownload fetch(TftpSimulatedNetwork net, TftpDownload d) throws IOException {
+        try(TftpTransport t = net.open()) {
+            assertTrue(d.run(t), "error: " + d.getError());
+        }
+        assertArrayEquals(Files.readAllBytes(new File(d.getFilename()).toPath()),
+                          Files.readAllBytes(d.getOutput().toPath()), "file arrived intact over " + net);
+        return d;
+    }
+
+    /* bytes per second */
+    private static long rate(TftpDownload d) {
+        return (long) (d.getBytes() * 1e9 / d.getNanos());
+    }
+
+    /*
+     * the same seed loses and duplicates the same packets every time;
+     * another seed does not.
+     */
+    @Test
+    @DisplayName("test deterministic")
+    void testDeterministic() throws IOException {
+        List<Integer> first = arrivals(42);
+        assertEquals(first, arrivals(42));
+        assertFalse(first.equals(arrivals(43)));
+        assertTrue(first.size() > 900 && first.size() < 1000, "about 5% lost: " + first.size());
+    }
+
+    /* send 1000 numbered packets over a lossy network, and list what arrives */
+    private static List<Integer> arrivals(long seed) throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(seed);
+        net.loss = 0.1;
+        net.duplicate = 0.05;
+        List<Integer> seen = new ArrayList<Integer>();
+        try(TftpTransport a = net.open(); TftpTransport b = net.open()) {
+            DatagramPacket p = new DatagramPacket(new byte[1], 1,
+                                                  InetAddress.getLoopbackAddress(), b.getLocalPort());
+            for(int i = 0; i < 1000; i++) {
+                p.getData()[0] = (byte) i;
+                a.send(p);
+            }
+            DatagramPacket q = new DatagramPacket(new byte[16], 16);
+            try {
+                while(true) {
+                    b.receive(q, 10);
+                    assertEquals(a.getLocalPort(), q.getPort());
+                    seen.add(q.getData()[0] & 0xff);
+                }
+            } catch(SocketTimeoutException e) {
+                /* that was all of them */
+            }
+        }
+        return seen;
+    }
+
+    /*
+     * packets take the delay to arrive, and a slow link makes them
+     * queue behind each other.
+     */
+    @Test
+    @DisplayName("test delay and bandwidth")
+    void testDelayAndBandwidth() throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(1).rtt(100 * MS);
+        net.bandwidth = 100000;
+        try(TftpTransport a = net.open(); TftpTransport b = net.open()) {
+            DatagramPacket p = new DatagramPacket(new byte[1000], 1000,
+                                                  InetAddress.getLoopbackAddress(), b.getLocalPort());
+            long start = System.nanoTime();
+            for(int i = 0; i < 10; i++) {
+                a.send(p);
+            }
+            DatagramPacket q = new DatagramPacket(new byte[1000], 1000);
+            b.receive(q, 1000);
+            long first = System.nanoTime() - start;
+            assertTrue(first >= 60 * MS && first < 100 * MS, "first after 10ms + 50ms: " + first);
+            for(int i = 1; i < 10; i++) {
+                b.receive(q, 1000);
+            }
+            long all = System.nanoTime() - start;
+            assertTrue(all >= 150 * MS && all < 200 * MS, "last after 100ms + 50ms: " + all);
+        }
+    }
+
+    /*
+     * with a 50ms round trip and nothing lost, a window of 32 blocks
+     * moves about 32 blocks per round trip.
+     */
+    @Test
+    @DisplayName("test clean window")
+    void testCleanWindow() throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(1).rtt(50 * MS);
+        try(TftpTransport server = serve(net)) {
+            TftpDownload d = fetch(net, download(server, TftpTestFiles.random(1 << 20), 32, 1468));
+            assertTrue(rate(d) > 400000, "at least 400KB/s of 940KB/s: " + rate(d));
+        }
+    }
+
+    /*
+     * at 1% loss with a 50ms round trip, a window recovers from each
+     * lost block with a fast retransmission or a timeout, and still
+     * gets most of its clean rate.
+     */
+    @Test
+    @DisplayName("test lossy window")
+    void testLossyWindow() throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(1).rtt(50 * MS);
+        net.loss = 0.01;
+        try(TftpTransport server = serve(net)) {
+            TftpDownload d = fetch(net, download(server, TftpTestFiles.random(1 << 20), 32, 1468));
+            assertTrue(net.lost() > 0, "something was lost: " + net);
+            assertTrue(d.getNanos() < 8000 * MS, "under 8s: " + d.getNanos() / MS + "ms");
+            assertTrue(rate(d) > 150000, "at least 150KB/s: " + rate(d));
+        }
+    }
+
+    /*
+     * stop-and-wait at 1% loss takes a round trip per block, and
+     * recovers from each loss with one timeout.
+     */
+    @Test
+    @DisplayName("test lossy stop and wait")
+    void testLossyStopAndWait() throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(3).rtt(50 * MS);
+        net.loss = 0.01;
+        try(TftpTransport server = serve(net)) {
+            TftpDownload d = fetch(net, download(server, TftpTestFiles.random(16 * 512), 1, 512));
+            assertTrue(d.getNanos() >= 17 * 50 * MS, "a round trip per block: " + d.getNanos() / MS + "ms");
+            assertTrue(d.getNanos() < 5000 * MS, "under 5s: " + d.getNanos() / MS + "ms");
+        }
+    }
+
+    /*
+     * duplicated and reordered blocks and ACKs, on top of loss and a
+     * slow link, still bring the file over intact.
+     */
+    @Test
+    @DisplayName("test duplicate and reorder")
+    void testDuplicateAndReorder() throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(5).rtt(20 * MS);
+        net.loss = 0.02;
+        net.duplicate = 0.02;
+        net.reorder = 0.02;
+        net.reorderNanos = 5 * MS;
+        net.bandwidth = 2 << 20;
+        try(TftpTransport server = serve(net)) {
+            TftpDownload d = fetch(net, download(server, TftpTestFiles.random(256 << 10), 16, 1024));
+            assertTrue(net.duplicated() > 0 && net.reordered() > 0, "it happened: " + net);
+            assertTrue(d.getNanos() < 10000 * MS, "under 10s: " + d.getNanos() / MS + "ms");
+        }
+    }
+
+    /*
+     * on a network that delivers every packet twice, the duplicate of
+     * the request is absorbed by the listener rather than starting a
+     * second transfer, and a packet that is not a request at all is
+     * dropped there too.  once the transfer is over, the client's
+     * session is gone.
+     */
+    @Test
+    @DisplayName("test duplicate requests")
+    void testDuplicateRequests() throws Exception {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(23).rtt(20 * MS);
+        net.duplicate = 1.0;
+        TftpServerConfig config = TftpServerConfig.parse(new String[0]);
+        try(TftpTransport server = serve(net, config)) {
+            fetch(net, download(server, TftpTestFiles.random(64 << 10), 16, 1024));
+            assertEquals(1, config.metrics.getTransfersStarted());
+            assertTrue(config.metrics.getDuplicateRequests() >= 1, "absorbed: " + config.metrics.scrape());
+
+            try(TftpTransport t = net.open()) {
+                byte[] junk = { 0, 3, 0, 1 };
+                t.send(new DatagramPacket(junk, junk.length, InetAddress.getLoopbackAddress(),
+                                          server.getLocalPort()));
+            }
+            for(int i = 0; i < 100 && (config.metrics.getStrayPackets() < 2 ||
+                                       config.sessions.size() > 0); i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, config.metrics.getStrayPackets());
+            assertEquals(1, config.metrics.getTransfersStarted());
+            assertEquals(0, config.sessions.size());
+        }
+    }
+
+    /*
+     * endpoints sharing a port each get everything from the senders
+     * hashed to them, and between them everything from all senders.
+     */
+    @Test
+    @DisplayName("test shared port")
+    void testSharedPort() throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(29);
+        try(TftpTransport a = net.open(); TftpTransport b = a.share()) {
+            assertEquals(a.getLocalPort(), b.getLocalPort());
+            List<TftpTransport> senders = new ArrayList<TftpTransport>();
+            for(int i = 0; i < 8; i++) {
+                senders.add(net.open());
+            }
+            for(int round = 0; round < 2; round++) {
+                for(TftpTransport t : senders) {
+                    byte[] data = { (byte) round };
+                    t.send(new DatagramPacket(data, 1, InetAddress.getLoopbackAddress(),
+                                              a.getLocalPort()));
+                }
+            }
+            List<Integer> toA = drain(a);
+            List<Integer> toB = drain(b);
+            assertEquals(16, toA.size() + toB.size());
+            assertTrue(!toA.isEmpty() && !toB.isEmpty(), "shared: " + toA + " " + toB);
+            for(Integer port : toA) {
+                assertFalse(toB.contains(port), "sender " + port + " went to both");
+            }
+            for(TftpTransport t : senders) {
+                t.close();
+            }
+        }
+    }
+
+    /* the ports everything waiting on t came from */
+    private static List<Integer> drain(TftpTransport t) throws IOException {
+        List<Integer> from = new ArrayList<Integer>();
+        DatagramPacket p = new DatagramPacket(new byte[1], 1);
+        try {
+            while(true) {
+                t.receive(p, 50);
+                from.add(p.getPort());
+            }
+        } catch(SocketTimeoutException e) {
+            return from;
+        }
+    }
+
+    /*
+     * a server listening on four shards of its port serves clients
+     * that arrive on any of them.
+     */
+    @Test
+    @DisplayName("test listeners")
+    void testListeners() throws Exception {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(31).rtt(10 * MS);
+        net.loss = 0.01;
+        File f = TftpTestFiles.random(128 << 10);
+        TftpServerConfig config = TftpServerConfig.parse(new String[] { "-listeners", "4" });
+        try(TftpTransport server = serve(net, config)) {
+            List<Thread> threads = new ArrayList<Thread>();
+            final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+            for(int i = 0; i < 8; i++) {
+                Thread t = new Thread(() -> {
+                    try {
+                        results.add(fetch(net, download(server, f, 8, 1024)));
+                    } catch(Throwable e) {
+                        results.add(e);
+                    }
+                });
+                t.start();
+                threads.add(t);
+            }
+            for(Thread t : threads) {
+                t.join();
+            }
+            for(Object r : results) {
+                assertTrue(r instanceof TftpDownload, "fetched: " + r);
+            }
+            assertEquals(8, config.metrics.getTransfersStarted());
+        }
+    }
+
+    /*
+     * a file that compresses well comes over compressed, in a fraction
+     * of the packets, and is inflated back intact despite losses.
+     */
+    @Test
+    @DisplayName("test compressed")
+    void testCompressed() throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(7).rtt(20 * MS);
+        net.loss = 0.01;
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < 20000; i++) {
+            sb.append("line ").append(i).append(": the quick brown fox\n");
+        }
+        File f = TftpTestFiles.holding(sb.toString().getBytes());
+        try(TftpTransport server = serve(net)) {
+            TftpDownload d = download(server, f, 16, 1468);
+            d.compress = true;
+            fetch(net, d);
+            assertEquals(f.length(), d.getBytes());
+            assertTrue(net.sent() * 1468 < f.length() / 2, "compressed: " + net);
+        }
+    }
+
+    /*
+     * with selective ACKs, a lost block costs only itself.  over a
+     * 1MB/s link with a 20ms round trip and 2% loss, a server paced
+     * just under the link keeps its goodput near 98% of that rate,
+     * where going back N would resend much of the window per loss.
+     */
+    @Test
+    @DisplayName("test selective")
+    void testSelective() throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(11).rtt(20 * MS);
+        net.loss = 0.02;
+        net.bandwidth = 1000000;
+        try(TftpTransport server = serve(net, "-rate", "980000")) {
+            TftpDownload d = fetch(net, download(server, TftpTestFiles.random(2 << 20), 64, 1468));
+            assertTrue(net.lost() > 20, "something was lost: " + net);
+            assertTrue(rate(d) > 850000, "at least 85% of the link: " + rate(d) + ", " + net);
+        }
+    }
+
+    /*
+     * a download that failed part way, leaving a checkpoint, fetches
+     * only the rest of the file from the last whole block before the
+     * checkpoint; one whose checkpoint is for a file of another size,
+     * or one modified at another time, starts again.  either way the checkpoint is gone once the file
+     * has arrived, and the whole file matches its digest.
+     */
+    @Test
+    @DisplayName("test resume")
+    void testResume() throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(17).rtt(20 * MS);
+        net.loss = 0.01;
+        File f = TftpTestFiles.random(1 << 20);
+        byte[] data = Files.readAllBytes(f.toPath());
+        try(TftpTransport server = serve(net)) {
+            long mtime = f.lastModified();
+            long[][] cases = { { f.length(), mtime }, { f.length() + 1, mtime },
+                               { f.length(), mtime - 1000 } };
+            for(long[] k : cases) {
+                TftpDownload d = download(server, f, 16, 1468);
+                d.resume = true;
+                d.digest = TftpDigest.CRC32C;
+                Files.write(d.getOutput().toPath(), Arrays.copyOf(data, 300000));
+                TftpCheckpoint c = new TftpCheckpoint(d.getOutput(), f.getAbsolutePath());
+                c.setSize(k[0]);
+                c.setMtime(k[1]);
+                c.save(300000);
+                fetch(net, d);
+                long from = k == cases[0] ? 300000 / 1468 * 1468 : 0;
+                assertEquals(f.length() - from, d.getBytes());
+                assertFalse(c.getFile().exists(), "checkpoint deleted");
+                assertNotNull(d.getDigest(), "checked the whole file");
+            }
+        }
+    }
+
+    /*
+     * a file checked against its digest arrives intact.  if the file
+     * changes on the server without its length or modification time
+     * changing, and the server is not caching its contents (which it
+     * would look up the same way), the cached digest no longer
+     * matches what is sent, and the client refuses the file.
+     */
+    @Test
+    @DisplayName("test digest")
+    void testDigest() throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(19).rtt(20 * MS);
+        net.loss = 0.01;
+        File f = TftpTestFiles.random(256 << 10);
+        try(TftpTransport server = serve(net, "-cache", "0")) {
+            for(String alg : TftpDigest.ALGORITHMS) {
+                TftpDownload d = download(server, f, 16, 1468);
+                d.digest = alg;
+                fetch(net, d);
+                assertTrue(d.getDigest().startsWith(alg + ":"), "checked " + d.getDigest());
+            }
+
+            long mtime = f.lastModified();
+            byte[] data = Files.readAllBytes(f.toPath());
+            data[1000] ^= 1;
+            Files.write(f.toPath(), data);
+            f.setLastModified(mtime);
+            TftpDownload d = download(server, f, 16, 1468);
+            d.digest = TftpDigest.CRC32C;
+            try(TftpTransport t = net.open()) {
+                assertFalse(d.run(t), "corrupt file refused");
+            }
+            assertTrue(d.getError().startsWith("digest mismatch"), d.getError());
+            assertFalse(d.getOutput().exists(), "corrupt file deleted");
+        }
+    }
+
+    /*
+     * a server that does not know the digest the client asked for
+     * leaves it out of its OACK, and the client, which was asked to
+     * check the file, refuses it rather than keep it unchecked.
+     */
+    @Test
+    @DisplayName("test no digest")
+    void testNoDigest() throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(37).rtt(20 * MS);
+        TftpServerConfig config = TftpServerConfig.parse(new String[0]);
+        config.digests.clear();
+        try(TftpTransport server = serve(net, config)) {
+            TftpDownload d = download(server, TftpTestFiles.random(64 << 10), 16, 1468);
+            d.digest = TftpDigest.CRC32C;
+            try(TftpTransport t = net.open()) {
+                assertFalse(d.run(t), "unchecked file refused");
+            }
+            assertTrue(d.getError().startsWith("no digest"), d.getError());
+            assertNull(d.getDigest());
+            assertFalse(d.getOutput().exists(), "unchecked file deleted");
+        }
+    }
+
+    /*
+     * a client that knows the file's size writes it into a mapping of
+     * it, putting the blocks that arrive out of order straight where
+     * they belong, and checks the digest of what it wrote as the gaps
+     * fill.  a compressed file, which is not mapped, is written in
+     * order.
+     */
+    @Test
+    @DisplayName("test mapped")
+    void testMapped() throws IOException {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(23).rtt(20 * MS);
+        net.loss = 0.02;
+        net.reorder = 0.02;
+        net.reorderNanos = 5 * MS;
+        byte[] text = new byte[300000];
+        for(int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 7);
+        }
+        File z = TftpTestFiles.holding(text);
+        try(TftpTransport server = serve(net)) {
+            for(File f : new File[] { TftpTestFiles.random(1 << 20), z }) {
+                TftpDownload d = download(server, f, 32, 1468);
+                d.digest = TftpDigest.CRC32C;
+                d.askSize = true;
+                d.compress = f == z;
+                fetch(net, d);
+                assertEquals(f.length(), d.getSize());
+                assertNotNull(d.getDigest(), "checked");
+            }
+            assertTrue(net.lost() > 0 && net.reordered() > 0, "it happened: " + net);
+        }
+    }
+
+    /*
+     * a mapped download that fails part way does not leave behind a
+     * file of the full size that looks as if it arrived.
+     */
+    @Test
+    @DisplayName("test mapped failure")
+    void testMappedFailure() throws Exception {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(41).rtt(20 * MS);
+        net.bandwidth = 200000;
+        try(TftpTransport server = serve(net)) {
+            TftpDownload d = download(server, TftpTestFiles.random(1 << 20), 16, 1468);
+            d.digest = TftpDigest.CRC32C;
+            d.askSize = true;
+            Thread t = new Thread(() -> {
+                try {
+                    Thread.sleep(500);
+                } catch(InterruptedException e) {
+                    return;
+                }
+                d.cancel();
+            });
+            t.start();
+            try(TftpTransport c = net.open()) {
+                assertFalse(d.run(c), "cancelled");
+            }
+            t.join();
+            assertEquals(1 << 20, d.getSize());
+            assertTrue(d.getBytes() < d.getSize(), "part way: " + d.getBytes());
+            assertFalse(d.getOutput().exists(), "partial file deleted");
+        }
+    }
+
+    /*
+     * a file fetched as four segments at once, one of which loses 5%
+     * of what is sent to it, arrives intact: a probe learns its size,
+     * and each segment writes its own range of whole blocks.
+     */
+    @Test
+    @DisplayName("test segmented")
+    void testSegmented() throws Exception {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(43).rtt(20 * MS);
+        File f = TftpTestFiles.random(1 << 20);
+        TftpServerConfig config = TftpServerConfig.parse(new String[0]);
+        try(TftpTransport server = serve(net, config)) {
+            final Random random = new Random(43);
+            final AtomicInteger opened = new AtomicInteger();
+            final AtomicInteger dropped = new AtomicInteger();
+            UnaryOperator<TftpTransport> second = t -> {
+                if(opened.incrementAndGet() != 2)
+                    return t;
+                return new Edited(t, p -> {
+                    if(random.nextDouble() >= 0.05)
+                        return true;
+                    dropped.incrementAndGet();
+                    return false;
+                }, u -> u);
+            };
+            TftpDownload d = download(server, f, 16, 1468);
+            try(TftpTransport t = new Edited(net.open(), p -> true, second)) {
+                assertTrue(TftpClient.segmented(d, 4, t), "fetched");
+            }
+            assertArrayEquals(Files.readAllBytes(f.toPath()),
+                              Files.readAllBytes(d.getOutput().toPath()), "file arrived intact");
+            assertEquals(4, opened.get());
+            assertTrue(dropped.get() > 0, "one segment lost some");
+            assertEquals(5, config.metrics.getTransfersStarted(), "a probe and four segments");
+        }
+    }
+
+    /*
+     * a batch fetches five files two at a time over two sockets, which
+     * each go on to their next file as soon as they are free; a file
+     * missing from the middle of the batch fails on its own, and the
+     * batch reports that not every file arrived.
+     */
+    @Test
+    @DisplayName("test batch")
+    void testBatch() throws Exception {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(53).rtt(20 * MS);
+        net.loss = 0.01;
+        List<File> files = new ArrayList<File>();
+        for(int i = 0; i < 5; i++)
+            files.add(TftpTestFiles.random((64 << 10) + i * 1000));
+        File missing = new File(files.get(2).getAbsolutePath() + ".missing");
+        files.set(2, missing);
+        TftpServerConfig config = TftpServerConfig.parse(new String[0]);
+        try(TftpTransport server = serve(net, config)) {
+            List<TftpDownload> downloads = new ArrayList<TftpDownload>();
+            for(File f : files)
+                downloads.add(download(server, f, 16, 1468));
+            final AtomicInteger opened = new AtomicInteger();
+            try(TftpTransport t = new Edited(net.open(), p -> true, u -> {
+                    opened.incrementAndGet();
+                    return u;
+                })) {
+                assertFalse(TftpClient.batch(downloads, 2, t), "not every file arrived");
+            }
+            assertEquals(2, opened.get(), "sockets reused");
+            for(int i = 0; i < files.size(); i++) {
+                TftpDownload d = downloads.get(i);
+                if(files.get(i) == missing) {
+                    assertTrue(d.getError().startsWith("file not found"), d.getError());
+                    continue;
+                }
+                assertNull(d.getError(), "error: " + d.getError());
+                assertArrayEquals(Files.readAllBytes(files.get(i).toPath()),
+                                  Files.readAllBytes(d.getOutput().toPath()), "file arrived intact");
+            }
+            assertEquals(5, config.metrics.getTransfersStarted());
+        }
+    }
+
+    /*
+     * a server that does not know byte ranges answers the probe with
+     * the whole file, so the client falls back to fetching it as one
+     * download, on the probe's socket.
+     */
+    @Test
+    @DisplayName("test segmented fallback")
+    void testSegmentedFallback() throws Exception {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(47).rtt(20 * MS);
+        net.loss = 0.01;
+        File f = TftpTestFiles.random(256 << 10);
+        TftpServerConfig config = TftpServerConfig.parse(new String[0]);
+        try(TftpTransport server = serve(new Edited(net.open(), TftpSimulatedNetworkTest::withoutRange,
+                                                    u -> u), config)) {
+            TftpDownload d = download(server, f, 16, 1468);
+            try(TftpTransport t = net.open()) {
+                assertTrue(TftpClient.segmented(d, 4, t), "fetched");
+            }
+            assertArrayEquals(Files.readAllBytes(f.toPath()),
+                              Files.readAllBytes(d.getOutput().toPath()), "file arrived intact");
+            assertEquals(2, config.metrics.getTransfersStarted(), "a probe and the whole file");
+        }
+    }
+
+    /* make an RRQ in p one without byte range options */
+    private static boolean withoutRange(DatagramPacket p) {
+        TftpPacket rrq = TftpPacket.parse(p);
+        if(rrq == null || rrq.getType() != TftpPacket.Type.RRQ)
+            return true;
+        Map<String,String> options = new LinkedHashMap<String,String>(rrq.getOptions());
+        options.remove(TftpPacket.OPT_OFFSET);
+        options.remove(TftpPacket.OPT_LENGTH);
+        DatagramPacket q = TftpPacket.createRRQ(p.getAddress(), p.getPort(), rrq.getFilename(), options);
+        System.arraycopy(q.getData(), q.getOffset(), p.getData(), p.getOffset(), q.getLength());
+        p.setLength(q.getLength());
+        return true;
+    }
+
+    /*
+     * a transport that passes everything through to t, except that
+     * each packet it receives goes through keep first, which may
+     * change it, or drop it by returning false.  what it opens is what
+     * opened makes of what t opens.
+     */
+    private static final class Edited implements TftpTransport {
+        private final TftpTransport t;
+        private final Predicate<DatagramPacket> keep;
+        private final UnaryOperator<TftpTransport> opened;
+
+        Edited(TftpTransport t, Predicate<DatagramPacket> keep, UnaryOperator<TftpTransport> opened) {
+            this.t = t;
+            this.keep = keep;
+            this.opened = opened;
+        }
+
+        public void receive(DatagramPacket p, int timeoutMillis) throws IOException {
+            int length = p.getLength();
+            do {
+                p.setLength(length);
+                t.receive(p, timeoutMillis);
+            } while(!keep.test(p));
+        }
+
+        public TftpTransport open() throws IOException {
+            return opened.apply(t.open());
+        }
+
+        public void send(ByteBuffer[] packet, InetSocketAddress to) throws IOException { t.send(packet, to); }
+        public void send(DatagramPacket p) throws IOException { t.send(p); }
+        public void connect(InetSocketAddress to) throws IOException { t.connect(to); }
+        public void setReceiveBufferSize(int bytes) throws IOException { t.setReceiveBufferSize(bytes); }
+        public int getLocalPort() { return t.getLocalPort(); }
+        public TftpTransport share() throws IOException { return t.share(); }
+        public TftpTransport join(InetSocketAddress group, InetAddress via) throws IOException {
+            return t.join(group, via);
+        }
+        public void setMulticastInterface(InetAddress via) throws IOException { t.setMulticastInterface(via); }
+        public void close() { t.close(); }
+    }
+
+    /*
+     * three clients fetching the same file at about the same time
+     * share one multicast transfer: the first is its master, and the
+     * two that join late fetch what they missed by unicast.  each
+     * member of the group loses its own 1% of the blocks, and the
+     * server sends the file about once rather than three times.
+     */
+    @Test
+    @DisplayName("test multicast")
+    void testMulticast() throws Exception {
+        TftpSimulatedNetwork net = new TftpSimulatedNetwork(13).rtt(20 * MS);
+        net.loss = 0.01;
+        net.bandwidth = 2000000;
+        File f = TftpTestFiles.random(1 << 20);
+        try(TftpTransport server = serve(net, "-multicast", "239.255.0.69:1758")) {
+            List<Thread> threads = new ArrayList<Thread>();
+            final List<Object> results = Collections.synchronizedList(new ArrayList<Object>());
+            for(int i = 0; i < 3; i++) {
+                Thread t = new Thread(() -> {
+                    try {
+                        TftpDownload d = download(server, f, 16, 1468);
+                        d.multicast = true;
+                        results.add(fetch(net, d));
+                    } catch(Throwable e) {
+                        results.add(e);
+                    }
+                });
+                t.start();
+                threads.add(t);
+                Thread.sleep(100);
+            }
+            for(Thread t : threads) {
+                t.join();
+            }
+            for(Object r : results) {
+                assertTrue(r instanceof TftpDownload, "fetched: " + r);
+            }
+            long blocks = f.length() / 1468 + 1;
+            assertTrue(net.lost() > 0, "something was lost: " + net);
+            assertTrue(net.sent() < 2 * blocks, "sent about once: " + net);
+        }
+    }
+}
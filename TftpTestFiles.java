@@ -0,0 +1,35 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+/*
+ * temporary files for the tests to read and write, deleted when the
+ * tests are over.
+ */
+class TftpTestFiles
+{
+    /* a new, empty temporary file */
+    static File temp() throws IOException
+    {
+        File f = File.createTempFile("tftptest", ".bin");
+        f.deleteOnExit();
+        return f;
+    }
+
+    /* a temporary file holding data */
+    static File holding(byte[] data) throws IOException
+    {
+        File f = temp();
+        Files.write(f.toPath(), data);
+        return f;
+    }
+
+    /* a temporary file of n random bytes, the same ones for the same n */
+    static File random(int n) throws IOException
+    {
+        byte[] data = new byte[n];
+        new Random(n).nextBytes(data);
+        return holding(data);
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * a token bucket, kept as the time at which it would next be empty
+ * if sending stopped: the "theoretical arrival time" of the generic
+ * cell rate algorithm.  sending n bytes at r bytes per second pushes
+ * that time n/r seconds further on, and a packet conforms as long as
+ * the time is no more than the burst tolerance ahead of now.
+ *
+ * the whole state is one AtomicLong, so a bucket shared by every
+ * transfer costs a single compare-and-set per packet rather than a
+ * lock, and time is kept in nanoseconds, so the long run rate is exact
+ * however coarsely the sender is woken up.
+ */
+class TftpTokenBucket
+{
+    /*
+     * how far ahead of now the bucket may run: the sender may burst
+     * this much traffic at full speed after being idle.
+     */
+    static final long TOLERANCE_NANOS = 10L * 1000000L;
+
+    private final AtomicLong tat;
+
+    TftpTokenBucket(long now)
+    {
+        this.tat = new AtomicLong(now);
+    }
+
+    /* how long bytes take to send at rate bytes per second */
+    private static long cost(long bytes, long rate)
+    {
+        return bytes * 1000000000L / rate;
+    }
+
+    /*
+     * take tokens for bytes at rate bytes per second.  returns zero if
+     * they were taken, or how many nanoseconds until they would be.
+     */
+    public long tryAcquire(long bytes, long rate, long now)
+    {
+        if(rate <= 0)
+            return 0;
+        long c = cost(bytes, rate);
+        while(true) {
+            long t = tat.get();
+            long start = t - now > 0 ? t : now;
+            long ahead = start - now;
+            if(ahead > TOLERANCE_NANOS)
+                return ahead - TOLERANCE_NANOS;
+            if(tat.compareAndSet(t, start + c))
+                return 0;
+        }
+    }
+
+    /* give back tokens taken by tryAcquire that were not used */
+    public void refund(long bytes, long rate)
+    {
+        if(rate > 0)
+            tat.addAndGet(-cost(bytes, rate));
+    }
+}
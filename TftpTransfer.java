@@ -0,0 +1,724 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * the server side of a single transfer, written as a state machine
+ * that does no network I/O of its own.  the engine that owns the
+ * transfer passes in packets that arrive for it (receive), tells it
+ * when its deadline has passed (timeout), and supplies a Sender for
+ * the packets it wants to transmit.  this lets the thread-per-transfer
+ * worker and the event loop engine share the same protocol logic.
+ */
+class TftpTransfer
+{
+    /*
+     * how the transfer hands packets back to its engine to transmit:
+     * the remaining bytes of each buffer, in turn, make up a single
+     * datagram to the given address, which is the client's unless the
+     * transfer is multicast.  this lets a DATA packet be sent as a
+     * header plus a view of the file, without copying the file's
+     * contents.
+     */
+    interface Sender
+    {
+        void send(ByteBuffer[] packet, InetSocketAddress to) throws IOException;
+    }
+
+    /*
+     * the largest window a client may negotiate.  block numbers wrap
+     * after 255, so the window must stay well under that for an ACK
+     * to identify a single block in flight.  with wide block numbers
+     * the window is limited only by what we are willing to keep track
+     * of.
+     */
+    static final int MAX_WINDOW = 128;
+    static final int MAX_WIDE_WINDOW = 8192;
+
+    /*
+     * however short the retransmission timeout gets, we do not give up
+     * on a client until it has been silent for at least this long,
+     * which is what five attempts with the old fixed one second
+     * timeout allowed.
+     */
+    static final long MIN_GIVE_UP_NANOS = 5000L * 1000000L;
+
+    private final TftpServerConfig config;
+    private final TftpPacket rrq;
+    private final InetAddress clientAddress;
+    private final int clientPort;
+    private final InetSocketAddress client;
+
+    private TftpBlockSource source = null;
+    private int window = 1;
+    private int blksize = TftpPacket.DEFAULT_BLKSIZE;
+    private boolean wide = false;
+    private boolean sack = false;
+
+    /*
+     * the DATA header, and the header and block buffers that make up
+     * each packet we hand to the Sender.  the source gives us any
+     * block again by number, so retransmitting needs no copy of the
+     * blocks in flight.
+     */
+    private final ByteBuffer header = ByteBuffer.allocateDirect(TftpPacket.headerLength(true));
+    private final ByteBuffer[] packet = new ByteBuffer[2];
+
+    /*
+     * blocks are counted from one with a long, so they never wrap;
+     * TftpPacket.wireBlock gives the block number to put on the wire,
+     * which is one byte unless the client agreed to wide blocks.
+     */
+    private long base = 1;      /* oldest unacknowledged block */
+    private long next = 1;      /* next block to send for the first time */
+    private long cursor = 1;    /* next block to send, for the first time or again */
+    private long last = -1;     /* final block */
+
+    /*
+     * this transfer's share of the server's send rate.  while paced is
+     * set, the deadline is when the pacer will let us send the next
+     * block, rather than a retransmission timeout.
+     */
+    private final TftpTokenBucket bucket;
+    private boolean paced = false;
+
+    /*
+     * the round trip time estimate, when each block in the window was
+     * last sent and whether it has been sent more than once (so it
+     * cannot be timed), and how many timeouts we have had since the
+     * transfer last moved on.
+     */
+    private final TftpRtt rtt;
+    private long[] sentAt;
+    private boolean[] resent;
+    private int attempts = 0;
+    private long lastProgress;
+
+    /*
+     * with selective ACKs: which blocks in the window the client says
+     * it has, when we last resent each one it does not, where we are
+     * in resending those, and one past the highest block it has.
+     * blocks missing below that are holes to fill; those above may
+     * still be on their way.
+     */
+    private boolean[] sacked;
+    private long[] repairedAt;
+    private long hole = 1;
+    private long highSack = 1;
+
+    /*
+     * set if the client asked for multicast and we have a group.  if
+     * we are the master of a multicast transfer: the file it is of,
+     * the OACK options for the clients that join it, and the joiners
+     * still to be sent them.  DATA goes to dataTo, which is the group
+     * or the client.
+     */
+    private final boolean multicast;
+    private File session = null;
+    private Map<String,String> joinOptions = null;
+    private final ConcurrentLinkedQueue<InetSocketAddress> joiners =
+        new ConcurrentLinkedQueue<InetSocketAddress>();
+    private InetSocketAddress dataTo;
+
+    private DatagramPacket oack = null; /* set while waiting for ACK 0 */
+    private long oackSentAt;
+    private boolean oackResent = false;
+    private boolean done = false;
+    private long deadline = Long.MAX_VALUE;
+
+    /* when the transfer started, and whether it is counted as started */
+    private long startedAt;
+    private boolean counted = false;
+
+    TftpTransfer(DatagramPacket req, TftpServerConfig config)
+    {
+        this.config = config;
+        this.rrq = TftpPacket.parse(req);
+        this.clientAddress = req.getAddress();
+        this.clientPort = req.getPort();
+        this.client = new InetSocketAddress(clientAddress, clientPort);
+        this.dataTo = client;
+        this.multicast = rrq != null && rrq.getType() == TftpPacket.Type.RRQ &&
+            config.multicast != null && rrq.getOptions().containsKey(TftpPacket.OPT_MULTICAST) &&
+            "1".equals(rrq.getOptions().get(TftpPacket.OPT_WIDEBLOCKS)) &&
+            !rrq.getOptions().containsKey(TftpPacket.OPT_OFFSET) &&
+            !rrq.getOptions().containsKey(TftpPacket.OPT_LENGTH);
+        this.rtt = new TftpRtt(config.minRtoNanos);
+        this.lastProgress = System.nanoTime();
+        this.bucket = new TftpTokenBucket(lastProgress);
+    }
+
+    public boolean isDone() { return done; }
+
+    /* true if the deadline is a wakeup from the pacer, not a timeout */
+    public boolean isPaced() { return paced; }
+    public InetAddress getClientAddress() { return clientAddress; }
+    public int getClientPort() { return clientPort; }
+
+    /*
+     * true if the client asked for a multicast transfer we can give
+     * it.  the engine must then not connect the transfer's socket to
+     * the client, since it sends to the group (or to the clients
+     * joining it) as well, and must drop anything that arrives from
+     * anywhere but the client.
+     */
+    public boolean isMulticast() { return multicast; }
+
+    /*
+     * the System.nanoTime value at which the engine should call
+     * timeout if no ACK has moved the transfer on before then, or at
+     * which the pacer will let the transfer send again.
+     */
+    public long deadline() { return deadline; }
+
+    /* the transfer's round trip time estimate */
+    public TftpRtt rtt() { return rtt; }
+
+    /*
+     * begin the transfer: open the file, negotiate any options, and
+     * send either an ERROR, an OACK, or the first window of DATA.
+     */
+    public void start(Sender out) throws IOException
+    {
+        /* ensure that the request packet is an RRQ */
+        if(rrq == null || rrq.getType() != TftpPacket.Type.RRQ){
+            done = true;
+            return;
+        }
+
+        /* try to open the file.  if not found, send an error */
+        String filename = rrq.getFilename();
+        File file = new File(filename);
+
+        /*
+         * a client asking for a file that is already being sent to
+         * the group joins that transfer, whose master tells it where
+         * to listen; there is nothing more for us to do.  otherwise
+         * we become the master of a transfer to the group.
+         */
+        if(multicast && file.isFile()){
+            File key = file.getCanonicalFile();
+            TftpTransfer master = config.multicast.open(key, this);
+            if(master != null){
+                master.join(client);
+                done = true;
+                return;
+            }
+            session = key;
+        }
+        startedAt = System.nanoTime();
+        counted = true;
+        config.metrics.transferStarted();
+        if(!file.isFile()){
+            send(out, TftpPacket.createERROR(clientAddress, clientPort, "file not found: " + filename));
+            finish(false);
+            return;
+        }
+
+        /*
+         * look through the options the client asked for, and build
+         * the set we agree to.  a client that asked for nothing gets
+         * plain stop-and-wait with no OACK, so old clients see no
+         * change.
+         */
+        Map<String,String> agreed = new LinkedHashMap<String,String>();
+        if("1".equals(rrq.getOptions().get(TftpPacket.OPT_WIDEBLOCKS))){
+            wide = true;
+            agreed.put(TftpPacket.OPT_WIDEBLOCKS, "1");
+            if("1".equals(rrq.getOptions().get(TftpPacket.OPT_SACK))){
+                sack = true;
+                agreed.put(TftpPacket.OPT_SACK, "1");
+            }
+        }
+        window = negotiate(TftpPacket.OPT_WINDOWSIZE, 1, 1,
+                           wide ? MAX_WIDE_WINDOW : MAX_WINDOW, agreed);
+        blksize = negotiate(TftpPacket.OPT_BLKSIZE, TftpPacket.DEFAULT_BLKSIZE,
+                            TftpPacket.MIN_BLKSIZE, TftpPacket.MAX_BLKSIZE, agreed);
+        String offset = rrq.getOptions().get(TftpPacket.OPT_OFFSET);
+        String length = rrq.getOptions().get(TftpPacket.OPT_LENGTH);
+
+        /*
+         * if the client can take the file compressed, and it is not
+         * asking for a byte range of it, send the compressed form if
+         * that is any smaller; otherwise the file as it is.  a
+         * multicast transfer is never compressed, since the clients
+         * that join it fetch what they miss as byte ranges.  on the nio
+         * engine, a file not compressed yet is sent as it is while it
+         * is compressed in the background (see cached).
+         */
+        long size = file.length();
+        if(TftpPacket.COMPRESS_DEFLATE.equals(rrq.getOptions().get(TftpPacket.OPT_COMPRESS)) &&
+           session == null &&
+           config.deflateCache != null && offset == null && length == null){
+            ByteBuffer z = cached(config.deflateCache, file);
+            if(z != null && z.capacity() > 0){
+                source = new TftpBlockSource(z, blksize);
+                agreed.put(TftpPacket.OPT_COMPRESS, TftpPacket.COMPRESS_DEFLATE);
+            }
+        }
+        if(source == null){
+            source = openSource(file);
+            size = source.size();
+        }
+
+        /*
+         * report the file's size if asked (tsize), and if asked for a
+         * byte range, send only that.  the client will write what we
+         * send at the offset it asked for, so if we cannot serve the
+         * range exactly, refuse rather than send something else.
+         */
+        if(rrq.getOptions().containsKey(TftpPacket.OPT_TSIZE))
+            agreed.put(TftpPacket.OPT_TSIZE, Long.toString(size));
+        if(rrq.getOptions().containsKey(TftpPacket.OPT_MTIME))
+            agreed.put(TftpPacket.OPT_MTIME, Long.toString(file.lastModified()));
+
+        /*
+         * a digest is of the whole file as it is on disk, whether we
+         * send a range of it or the compressed form.  as with the
+         * caches, the nio engine does not wait for a file to be hashed,
+         * and leaves the option out until it has been.
+         */
+        String alg = rrq.getOptions().get(TftpPacket.OPT_DIGEST);
+        TftpDigestCache digests = alg != null ? config.digests.get(alg.trim().toLowerCase()) : null;
+        if(digests != null){
+            String d = digests.digest(file, !config.engine.equals("nio"));
+            if(d != null)
+                agreed.put(TftpPacket.OPT_DIGEST, digests.algorithm + ":" + d);
+        }
+        if(offset != null || length != null){
+            long n = -1;
+            long off = 0;
+            try {
+                off = offset != null ? Long.parseLong(offset.trim()) : 0;
+                n = source.range(off, length != null ? Long.parseLong(length.trim()) : Long.MAX_VALUE);
+            } catch(NumberFormatException e) {
+                n = -1;
+            }
+            if(n < 0){
+                send(out, TftpPacket.createERROR(clientAddress, clientPort, "bad range: " + filename));
+                finish(false);
+                return;
+            }
+            agreed.put(TftpPacket.OPT_OFFSET, Long.toString(off));
+            agreed.put(TftpPacket.OPT_LENGTH, Long.toString(n));
+        }
+
+        /*
+         * the master of a multicast transfer sends its DATA to the
+         * group.  its client is told it is the master, and each
+         * client that joins is told it is not, along with the block
+         * size and the file's size, which it needs to know what it
+         * has missed.
+         */
+        if(session != null){
+            InetSocketAddress g = config.multicast.group;
+            String where = g.getAddress().getHostAddress() + "," + g.getPort() + ",";
+            joinOptions = new LinkedHashMap<String,String>();
+            joinOptions.put(TftpPacket.OPT_BLKSIZE, Integer.toString(blksize));
+            joinOptions.put(TftpPacket.OPT_WIDEBLOCKS, "1");
+            joinOptions.put(TftpPacket.OPT_TSIZE, Long.toString(size));
+            joinOptions.put(TftpPacket.OPT_MULTICAST, where + "0");
+            agreed.put(TftpPacket.OPT_TSIZE, Long.toString(size));
+            agreed.put(TftpPacket.OPT_MULTICAST, where + "1");
+            dataTo = g;
+        }
+        if(config.readAhead != null)
+            source.readAhead(config.readAhead);
+        last = source.blocks();
+        sentAt = new long[window];
+        resent = new boolean[window];
+        if(sack){
+            sacked = new boolean[window];
+            repairedAt = new long[window];
+        }
+
+        /*
+         * if we agreed to any options, send an OACK and wait for the
+         * client to acknowledge it with block zero before we start
+         * sending DATA.
+         */
+        if(!agreed.isEmpty()){
+            oack = TftpPacket.createOACK(clientAddress, clientPort, agreed);
+            send(out, oack);
+            oackSentAt = System.nanoTime();
+            arm();
+            return;
+        }
+        pump(out);
+    }
+
+    /*
+     * handle a packet that arrived on the transfer's socket, which the
+     * engine has connected to the client, so it can only have come
+     * from there.  anything other than an ACK (or a SACK, if we agreed
+     * to them) is ignored.  the packet is looked at through a view, so
+     * handling an ACK allocates nothing.
+     */
+    public void receive(TftpPacket.View ack, Sender out) throws IOException
+    {
+        if(!done)
+            welcome(out);
+        TftpPacket.Type type = ack.getType();
+        if(done || !(type == TftpPacket.Type.ACK || (sack && type == TftpPacket.Type.SACK)) ||
+           ack.isWide() != wide)
+            return;
+
+        /* an ACK of block zero acknowledges our OACK */
+        long now = System.nanoTime();
+        if(oack != null){
+            if(ack.getBlock() == 0){
+                if(!oackResent)
+                    sample(now - oackSentAt);
+                oack = null;
+                progress(now);
+                pump(out);
+            }
+            return;
+        }
+
+        /*
+         * find which block in flight the ACK refers to, and slide the
+         * window past it.  the ACK times the block it names, unless
+         * that block was retransmitted.
+         */
+        long acked = inFlight(ack.getBlock());
+        if(acked >= 0) {
+            int slot = (int)(acked % window);
+            if(!resent[slot])
+                sample(now - sentAt[slot]);
+            base = acked + 1;
+            if(cursor < base)
+                cursor = base;
+            progress(now);
+            if(base > last){
+                finish(true);
+                return;
+            }
+            arm();
+        }
+
+        /*
+         * a SACK also tells us which blocks after its cumulative one
+         * arrived; resend the ones missing below the highest of them.
+         */
+        if(type == TftpPacket.Type.SACK){
+            long cum = acked >= 0 ? acked
+                     : TftpPacket.wireBlock(base - 1, wide) == ack.getBlock() ? base - 1 : -1;
+            if(cum >= 0)
+                selective(ack, cum);
+            pump(out);
+        }
+        else if(acked >= 0) {
+            pump(out);
+        }
+
+        /*
+         * an ACK for the block before the window means the client saw
+         * a gap, so retransmit the window now rather than waiting for
+         * the timeout.  in stop-and-wait mode this would be a duplicate
+         * ACK, which we must ignore, or every later block would be
+         * sent twice.  with selective ACKs the client tells us which
+         * blocks it is missing, so a duplicate ACK there means only
+         * that a block arrived twice.
+         */
+        else if(!sack && window > 1 && base < next &&
+                TftpPacket.wireBlock(base - 1, wide) == ack.getBlock()) {
+            cursor = base;
+            pump(out);
+        }
+    }
+
+    /*
+     * the deadline passed.  if we were waiting for the pacer, carry on
+     * sending.  otherwise the transfer has not moved on: back off the
+     * retransmission timeout, and go back and retransmit from the
+     * oldest unacknowledged block (or the OACK).  if we have tried the
+     * configured number of times without progress, and the client has
+     * been silent for long enough, give up.
+     */
+    public void timeout(Sender out) throws IOException
+    {
+        if(done)
+            return;
+        welcome(out);
+        if(paced){
+            pump(out);
+            return;
+        }
+        long now = System.nanoTime();
+        config.metrics.timedOut();
+        if(++attempts >= config.maxAttempts && now - lastProgress >= MIN_GIVE_UP_NANOS){
+            finish(false);
+            return;
+        }
+        rtt.backoff();
+        if(oack != null){
+            resend(out, oack);
+            oackResent = true;
+            arm();
+            return;
+        }
+        cursor = base;
+        pump(out);
+    }
+
+    /* release the file, whether or not the transfer completed */
+    public void close()
+    {
+        finish(false);
+    }
+
+    /*
+     * a client has asked to join our multicast transfer.  it is sent
+     * its OACK by our engine's thread, the next time we are called.
+     */
+    void join(InetSocketAddress joiner)
+    {
+        joiners.add(joiner);
+    }
+
+    /* tell the clients that have joined where to listen */
+    private void welcome(Sender out) throws IOException
+    {
+        InetSocketAddress j;
+        while((j = joiners.poll()) != null) {
+            if(joinOptions != null)
+                send(out, TftpPacket.createOACK(j.getAddress(), j.getPort(), joinOptions));
+        }
+    }
+
+    /*
+     * note the blocks a SACK says arrived after block cum, and start
+     * looking for holes to fill from the oldest block in flight.
+     */
+    private void selective(TftpPacket.View ack, long cum)
+    {
+        int bits = (int) Math.min(ack.getSackBits(), next - cum - 1);
+        for(int i = 0; i < bits; i++) {
+            if(ack.isSacked(i)){
+                long n = cum + 1 + i;
+                sacked[(int)(n % window)] = true;
+                if(n >= highSack)
+                    highSack = n + 1;
+            }
+        }
+        hole = base;
+    }
+
+    /*
+     * send blocks from the cursor to the end of the window: blocks not
+     * yet in flight, and after a timeout or a gap, blocks being sent
+     * again.  the final block is shorter than blksize (possibly empty,
+     * if the file is a multiple of blksize bytes long).  with selective
+     * ACKs, first fill any holes the client told us about that we
+     * have not resent within the retransmission timeout, and never
+     * resend a block the client has.
+     *
+     * each block must be let through by the pacer.  if it is held
+     * back, stop and make the deadline the time the pacer gives us.
+     * the retransmission timer runs from the last block sent, since
+     * the client cannot ACK a window we have not finished sending.
+     */
+    private void pump(Sender out) throws IOException
+    {
+        paced = false;
+        long now = System.nanoTime();
+        boolean sent = false;
+        if(sack){
+            for(hole = Math.max(hole, base); hole < highSack; hole++) {
+                int slot = (int)(hole % window);
+                if(sacked[slot] || (repairedAt[slot] != 0 && now - repairedAt[slot] < rtt.rto()))
+                    continue;
+                long wait = config.pacer.acquire(bucket, TftpPacket.headerLength(wide) + source.length(hole), now);
+                if(wait > 0){
+                    paced = true;
+                    deadline = now + wait;
+                    return;
+                }
+                sendBlock(out, hole);
+                now = System.nanoTime();
+                resent[slot] = true;
+                repairedAt[slot] = now;
+                config.metrics.retransmitted();
+                sent = true;
+            }
+        }
+        while(cursor < base + window && cursor <= last) {
+            int slot = (int)(cursor % window);
+            if(sack && cursor < next && sacked[slot]){
+                cursor++;
+                continue;
+            }
+            int length = source.length(cursor);
+            long wait = config.pacer.acquire(bucket, TftpPacket.headerLength(wide) + length, now);
+            if(wait > 0){
+                paced = true;
+                deadline = now + wait;
+                return;
+            }
+            sendBlock(out, cursor);
+            now = System.nanoTime();
+            if(cursor >= next){
+                sentAt[slot] = now;
+                resent[slot] = false;
+                if(sack){
+                    sacked[slot] = false;
+                    repairedAt[slot] = 0;
+                }
+                next = cursor + 1;
+                config.metrics.blockSent(length);
+            } else {
+                resent[slot] = true;
+                if(sack)
+                    repairedAt[slot] = now;
+                config.metrics.retransmitted();
+            }
+            cursor++;
+            sent = true;
+        }
+        if(sent)
+            arm();
+    }
+
+    /* the client acknowledged something new */
+    private void progress(long now)
+    {
+        attempts = 0;
+        lastProgress = now;
+    }
+
+    /* time a round trip, for the retransmission timeout and the metrics */
+    private void sample(long nanos)
+    {
+        rtt.sample(nanos);
+        config.metrics.rttSample(nanos);
+    }
+
+    /* restart the retransmission timer */
+    private void arm()
+    {
+        deadline = System.nanoTime() + rtt.rto();
+    }
+
+    /*
+     * serve the file out of the shared cache if we can, or from a
+     * mapping of our own if it is too big to cache (or, on the nio
+     * engine, is not cached yet).
+     */
+    private TftpBlockSource openSource(File file) throws IOException
+    {
+        ByteBuffer cached = config.cache != null ? cached(config.cache, file) : null;
+        if(cached != null)
+            return new TftpBlockSource(cached, blksize);
+        return new TftpBlockSource(file, blksize);
+    }
+
+    /*
+     * what cache holds for file.  a transfer on the nio engine shares
+     * its thread with every other transfer on its event loop, which
+     * would all stall while it read or compressed a file that is not
+     * cached yet, so it only looks, and the cache loads the file in
+     * the background for whoever asks next.  a transfer on the thread
+     * engine has a thread of its own to wait on.
+     */
+    private ByteBuffer cached(TftpBlockCache cache, File file)
+    {
+        return config.engine.equals("nio") ? cache.lookup(file) : cache.get(file);
+    }
+
+    /*
+     * the block in flight that has the given number on the wire, or
+     * -1 if there is none.  the window is always shorter than the
+     * cycle of wire numbers, so at most one block in flight has it.
+     */
+    private long inFlight(long wire)
+    {
+        long cycle = wide ? TftpPacket.MAX_WIDE_BLOCK : 255;
+        if(wire < 1 || wire > cycle)
+            return -1;
+        long n = base + Math.floorMod(wire - TftpPacket.wireBlock(base, wide), cycle);
+        return n < next ? n : -1;
+    }
+
+    /* send block n as a DATA header followed by a view of the file */
+    private void sendBlock(Sender out, long n) throws IOException
+    {
+        packet[0] = TftpPacket.putDATAHeader(header, TftpPacket.wireBlock(n, wide), wide);
+        packet[1] = source.block(n);
+        out.send(packet, dataTo);
+    }
+
+    /* send a packet built by one of the TftpPacket.create methods */
+    private void send(Sender out, DatagramPacket p) throws IOException
+    {
+        config.metrics.packetSent();
+        write(out, p);
+    }
+
+    /* send such a packet again, counting it once, as a retransmission */
+    private void resend(Sender out, DatagramPacket p) throws IOException
+    {
+        config.metrics.retransmitted();
+        write(out, p);
+    }
+
+    private void write(Sender out, DatagramPacket p) throws IOException
+    {
+        packet[0] = ByteBuffer.wrap(p.getData(), p.getOffset(), p.getLength());
+        packet[1] = ByteBuffer.allocate(0);
+        out.send(packet, (InetSocketAddress) p.getSocketAddress());
+    }
+
+    /*
+     * count the transfer as completed or aborted, the first time it
+     * ends, and if it was the master of a multicast transfer, let the
+     * next client to ask for the file start another.  the mapping is
+     * released when the source is garbage collected; there is no way
+     * to unmap it sooner.
+     */
+    private void finish(boolean completed)
+    {
+        if(session != null){
+            config.multicast.close(session, this);
+            session = null;
+        }
+        if(counted){
+            counted = false;
+            if(completed)
+                config.metrics.transferCompleted((last - 1) * blksize + source.length(last),
+                                                 System.nanoTime() - startedAt);
+            else
+                config.metrics.transferAborted();
+        }
+        done = true;
+        deadline = Long.MAX_VALUE;
+        source = null;
+    }
+
+    /*
+     * look up a numeric option in the request.  if the client asked
+     * for it, clamp the value to the range we support, record the
+     * value we agreed to, and return it; otherwise (or if the value is
+     * not a number) return the default.
+     */
+    private int negotiate(String option, int dflt, int min, int max,
+                          Map<String,String> agreed)
+    {
+        String value = rrq.getOptions().get(option);
+        if(value == null)
+            return dflt;
+        try {
+            int v = Math.max(min, Math.min(max, Integer.parseInt(value.trim())));
+            agreed.put(option, Integer.toString(v));
+            return v;
+        } catch(NumberFormatException e) {
+            return dflt;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/*
+ * how the thread engine and the client exchange datagrams.  the
+ * real one, TftpUdpTransport, is a UDP socket; TftpSimulatedNetwork
+ * provides one that loses, duplicates, reorders, delays and throttles
+ * packets, so that retransmission and windowing can be tested
+ * without a real network.
+ */
+interface TftpTransport extends Closeable
+{
+    /* send the remaining bytes of the buffers, in turn, as one datagram */
+    void send(ByteBuffer[] packet, InetSocketAddress to) throws IOException;
+
+    /* send a packet built by one of the TftpPacket.create methods */
+    void send(DatagramPacket p) throws IOException;
+
+    /*
+     * receive a datagram into p, setting its length, address and port,
+     * as DatagramSocket.receive does.  waits at most timeoutMillis
+     * (0 is forever), then throws SocketTimeoutException.
+     */
+    void receive(DatagramPacket p, int timeoutMillis) throws IOException;
+
+    /*
+     * from now on, exchange datagrams only with to: anything that
+     * arrives from elsewhere is dropped.
+     */
+    void connect(InetSocketAddress to) throws IOException;
+
+    /* ask for room to queue at least this many bytes of arrivals */
+    void setReceiveBufferSize(int bytes) throws IOException;
+
+    int getLocalPort();
+
+    /*
+     * a new transport on the same network and host as this one, on a
+     * port of its own, as the server opens for each transfer.
+     */
+    TftpTransport open() throws IOException;
+
+    /*
+     * a new transport on the same port as this one, as the server
+     * opens to receive requests on several threads.  arrivals are
+     * shared out between the transports on the port by where they
+     * come from, so everything from one sender goes to the same one.
+     */
+    TftpTransport share() throws IOException;
+
+    /*
+     * a new transport that also receives what is sent to the
+     * multicast group, joined on the interface that leads to via, as
+     * a client of a multicast transfer opens.  several may join the
+     * same group on one host.
+     */
+    TftpTransport join(InetSocketAddress group, InetAddress via) throws IOException;
+
+    /*
+     * send what is sent to a multicast group out of the interface
+     * that leads to via, rather than wherever the routing table says.
+     */
+    void setMulticastInterface(InetAddress via) throws IOException;
+
+    void close();
+}
@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/*
+ * a TftpTransport that is a UDP socket.  it is a blocking datagram
+ * channel, so that a connected transport can send a header and a view
+ * of a file as one gathering write; receives go through the channel's
+ * socket, which is the one that honours a timeout.
+ */
+class TftpUdpTransport implements TftpTransport
+{
+    private final DatagramChannel ch;
+    private final DatagramSocket ds;
+    private final InetAddress host;
+    private InetSocketAddress peer = null;
+
+    /* where to gather a packet bound for somewhere we are not connected to */
+    private ByteBuffer scratch = null;
+
+    /* a transport on any free port of every local address */
+    TftpUdpTransport() throws IOException
+    {
+        this(null);
+    }
+
+    /* a transport bound to local (null for any free port) */
+    TftpUdpTransport(InetSocketAddress local) throws IOException
+    {
+        this(local, false);
+    }
+
+    /*
+     * a transport bound to local, which if reusePort is true other
+     * transports may share (see share).
+     */
+    TftpUdpTransport(InetSocketAddress local, boolean reusePort) throws IOException
+    {
+        this(bind(local, reusePort), local != null ? local.getAddress() : null);
+    }
+
+    private TftpUdpTransport(DatagramChannel ch, InetAddress host)
+    {
+        this.ch = ch;
+        this.ds = ch.socket();
+        this.host = host;
+    }
+
+    public void send(ByteBuffer[] packet, InetSocketAddress to) throws IOException
+    {
+        if(to.equals(peer)){
+            ch.write(packet);
+            return;
+        }
+        int n = 0;
+        for(ByteBuffer b : packet)
+            n += b.remaining();
+        if(scratch == null || scratch.capacity() < n)
+            scratch = ByteBuffer.allocate(n);
+        scratch.clear();
+        for(ByteBuffer b : packet)
+            scratch.put(b);
+        scratch.flip();
+        ch.send(scratch, to);
+    }
+
+    public void send(DatagramPacket p) throws IOException
+    {
+        ds.send(p);
+    }
+
+    public void receive(DatagramPacket p, int timeoutMillis) throws IOException
+    {
+        ds.setSoTimeout(timeoutMillis);
+        ds.receive(p);
+    }
+
+    public void connect(InetSocketAddress to) throws IOException
+    {
+        ch.connect(to);
+        peer = to;
+    }
+
+    public void setReceiveBufferSize(int bytes) throws IOException
+    {
+        if(ds.getReceiveBufferSize() < bytes)
+            ds.setReceiveBufferSize(bytes);
+    }
+
+    public int getLocalPort() { return ds.getLocalPort(); }
+
+    /*
+     * open a channel bound to local.  with reusePort, it is bound with
+     * SO_REUSEPORT, so that other channels with it may be bound to
+     * the same port, and the kernel hashes each sender to one of them.
+     * every channel on the port must have it, including the first.
+     */
+    static DatagramChannel bind(InetSocketAddress local, boolean reusePort) throws IOException
+    {
+        DatagramChannel ch = DatagramChannel.open();
+        try {
+            if(reusePort) {
+                if(!ch.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+                    throw new SocketException("SO_REUSEPORT is not supported");
+                ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            ch.bind(local);
+        } catch(IOException e) {
+            ch.close();
+            throw e;
+        }
+        return ch;
+    }
+
+    /* this transport must have been bound with reusePort */
+    public TftpTransport share() throws IOException
+    {
+        InetSocketAddress local = host != null ? new InetSocketAddress(host, getLocalPort())
+                                               : new InetSocketAddress(getLocalPort());
+        return new TftpUdpTransport(bind(local, true), host);
+    }
+
+    public TftpTransport open() throws IOException
+    {
+        return new TftpUdpTransport(host != null ? new InetSocketAddress(host, 0) : null);
+    }
+
+    /*
+     * bind to the group's port on every address, sharing it with any
+     * other member on this host, and join the group.  a transport
+     * bound to the group address itself would not work everywhere.
+     */
+    public TftpTransport join(InetSocketAddress group, InetAddress via) throws IOException
+    {
+        NetworkInterface ni = route(via);
+        DatagramChannel g = DatagramChannel.open(group.getAddress() instanceof Inet6Address
+                                                 ? StandardProtocolFamily.INET6
+                                                 : StandardProtocolFamily.INET);
+        try {
+            g.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            g.bind(new InetSocketAddress(group.getPort()));
+            g.join(group.getAddress(), ni);
+        } catch(IOException e) {
+            g.close();
+            throw e;
+        }
+        return new TftpUdpTransport(g, null);
+    }
+
+    public void setMulticastInterface(InetAddress via) throws IOException
+    {
+        ch.setOption(StandardSocketOptions.IP_MULTICAST_IF, route(via));
+    }
+
+    /*
+     * the interface that packets to via leave through: the one with
+     * the address a socket connected to via sends from.  connecting a
+     * datagram socket sends nothing.
+     */
+    static NetworkInterface route(InetAddress via) throws IOException
+    {
+        try(DatagramChannel probe = DatagramChannel.open()) {
+            probe.connect(new InetSocketAddress(via, 9));
+            InetAddress local = ((InetSocketAddress) probe.getLocalAddress()).getAddress();
+            NetworkInterface ni = NetworkInterface.getByInetAddress(local);
+            if(ni == null)
+                throw new SocketException("no interface leads to " + via);
+            return ni;
+        }
+    }
+
+    public void close()
+    {
+        try {
+            ch.close();
+        } catch(IOException e) {
+            /* the channel is gone either way */
+        }
+    }
+}
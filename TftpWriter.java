@@ -0,0 +1,390 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ * writes a file behind the network: the receiving thread copies each
+ * block into a buffer and carries on, while a writer thread of our
+ * own writes filled buffers to disk, so disk latency does not add to
+ * each round trip.
+ *
+ * the buffers form a bounded ring: there are a fixed number of them,
+ * passed from the receiving thread to the writer through one queue and
+ * back through another.  if the disk falls behind and every buffer is
+ * full, write waits for the writer to free one.  the writer takes
+ * every filled buffer that is waiting, and writes them all to the
+ * FileChannel in one gathering write.
+ *
+ * several writers may share one FileChannel, each writing its own
+ * part of the file from a given position, as the segments of a
+ * segmented download do.  they then write with positional writes, and
+ * whoever opened the channel closes it.
+ *
+ * a writer may keep a checkpoint of how much of its file is safely on
+ * disk, so that a download that fails can carry on from there: every
+ * so often, and when it is closed, the writer thread forces the file
+ * to disk and saves the checkpoint.
+ *
+ * once the size of the file is known, a writer that has written nothing
+ * yet may map the whole of it instead (see map), and copy each block
+ * straight into place in the mapping on the receiving thread, leaving
+ * the kernel to write it back.  blocks may then also be put where
+ * they belong as they arrive, in any order.
+ *
+ * an error writing the file is reported by the next call to write or
+ * close.
+ */
+class TftpWriter
+{
+    /* the default number and size of the buffers in the ring */
+    static final int DEFAULT_BUFFERS = 8;
+    static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private final FileChannel fc;
+    private final boolean owned;
+    private final boolean sync;
+    private final TftpCheckpoint checkpoint;
+
+    /* where the file was last checkpointed */
+    private long checkpointed;
+
+    /*
+     * where a writer on a shared channel writes next (a writer that
+     * owns its channel uses the channel's position)
+     */
+    private long position;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final ArrayBlockingQueue<ByteBuffer> full;
+    private final Thread writer;
+
+    /* the buffer being filled by the receiving thread */
+    private ByteBuffer current;
+    private long written = 0;
+    private volatile IOException error = null;
+    private boolean closed = false;
+
+    /*
+     * the mapping of the whole file, in segments of a whole number of
+     * blocks, if map was called, and the size of the file.
+     */
+    private MappedByteBuffer[] mappings = null;
+    private long segmentSize;
+    private long size;
+
+    /* an empty buffer, queued by close to tell the writer to stop */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    TftpWriter(File file, boolean sync) throws IOException
+    {
+        this(file, sync, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    /*
+     * create (or truncate) the file, and start the writer thread.  if
+     * sync is true, close forces the file's contents to the disk
+     * before it returns.  it is opened to read as well, which mapping
+     * it needs.
+     */
+    TftpWriter(File file, boolean sync, int buffers, int bufferSize) throws IOException
+    {
+        this(FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                              StandardOpenOption.READ, StandardOpenOption.WRITE,
+                              StandardOpenOption.TRUNCATE_EXISTING),
+             true, 0, sync, null, buffers, bufferSize);
+    }
+
+    /*
+     * carry on writing a file from position, cutting off anything
+     * after it, and keep checkpoint up to date as we go.
+     */
+    TftpWriter(File file, boolean sync, long position, TftpCheckpoint checkpoint)
+        throws IOException
+    {
+        this(resume(file, position), true, position, sync, checkpoint,
+             DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    /*
+     * write into part of a file through a channel opened by the
+     * caller, starting at position.  close waits for the writes, but
+     * leaves the channel open.
+     */
+    TftpWriter(FileChannel fc, long position) throws IOException
+    {
+        this(fc, false, position, false, null, DEFAULT_BUFFERS, DEFAULT_BUFFER_SIZE);
+    }
+
+    private TftpWriter(FileChannel fc, boolean owned, long position, boolean sync,
+                       TftpCheckpoint checkpoint, int buffers, int bufferSize)
+    {
+        this.fc = fc;
+        this.owned = owned;
+        this.position = position;
+        this.sync = sync;
+        this.checkpoint = checkpoint;
+        this.checkpointed = position;
+        this.free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+        this.full = new ArrayBlockingQueue<ByteBuffer>(buffers + 1);
+        for(int i = 1; i < buffers; i++)
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        this.current = ByteBuffer.allocateDirect(bufferSize);
+        this.writer = new Thread(this::drain, "TftpWriter");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /* open a file to write from position, without what follows it */
+    private static FileChannel resume(File file, long position) throws IOException
+    {
+        FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                          StandardOpenOption.WRITE);
+        try {
+            fc.truncate(position);
+            fc.position(position);
+        } catch(IOException e) {
+            fc.close();
+            throw e;
+        }
+        return fc;
+    }
+
+    /* how many bytes have been handed to write so far */
+    public long written() { return written; }
+
+    /*
+     * make the file size bytes long, in blocks of blksize, and map it,
+     * so that from now on everything is written into the mapping.
+     * only a writer that owns its channel, keeps no checkpoint and
+     * has written nothing yet can; returns whether this one is mapped.
+     * java cannot allocate the file's space without writing it, so
+     * the file is extended, which at least tells the filesystem how
+     * big it will be before any of it is written back.  the mapping
+     * is only released when it is garbage collected.
+     */
+    public boolean map(long size, int blksize) throws IOException
+    {
+        if(mappings != null)
+            return true;
+        if(!owned || checkpoint != null || written > 0)
+            return false;
+        check();
+        this.size = size;
+        this.segmentSize = (TftpBlockSource.MAX_SEGMENT / blksize) * blksize;
+        int n = (int)((size + segmentSize - 1) / segmentSize);
+        MappedByteBuffer[] m = new MappedByteBuffer[n];
+        for(int i = 0; i < n; i++) {
+            long pos = i * segmentSize;
+            m[i] = fc.map(FileChannel.MapMode.READ_WRITE, pos, Math.min(segmentSize, size - pos));
+        }
+        mappings = m;
+        return true;
+    }
+
+    /* whether the file is mapped */
+    public boolean mapped() { return mappings != null; }
+
+    /*
+     * put length bytes from data at position in the mapped file,
+     * without counting them as written, for a block that has arrived
+     * ahead of the blocks before it.
+     */
+    public void place(long position, byte[] data, int offset, int length) throws IOException
+    {
+        if(position < 0 || position + length > size)
+            throw new IOException("data beyond the size the server gave");
+        while(length > 0) {
+            MappedByteBuffer m = mappings[(int)(position / segmentSize)];
+            int off = (int)(position % segmentSize);
+            int n = Math.min(length, m.capacity() - off);
+            m.position(off);
+            m.put(data, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /*
+     * count the next block of length bytes, which has already been
+     * placed, as written, and return it, for the caller to read.  it
+     * is only valid until the next call.
+     */
+    public ByteBuffer placed(int length) throws IOException
+    {
+        if(written + length > size)
+            throw new IOException("data beyond the size the server gave");
+        MappedByteBuffer m = mappings[(int)(written / segmentSize)];
+        int off = (int)(written % segmentSize);
+        m.limit(off + length).position(off);
+        ByteBuffer b = m.slice();
+        m.clear();
+        written += length;
+        return b;
+    }
+
+    /*
+     * append length bytes from data, starting at offset.  the bytes
+     * are copied, so the caller may reuse data as soon as this
+     * returns.
+     */
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        check();
+        if(mappings != null) {
+            place(written, data, offset, length);
+            written += length;
+            return;
+        }
+        while(length > 0) {
+            if(!current.hasRemaining())
+                publish();
+            int n = Math.min(length, current.remaining());
+            current.put(data, offset, n);
+            offset += n;
+            length -= n;
+            written += n;
+        }
+    }
+
+    /*
+     * write length bytes from data at position in the file, straight
+     * away on the calling thread, for blocks that arrive in no
+     * particular order.  not to be mixed with write, which carries on
+     * from wherever its last bytes went.
+     */
+    public void writeAt(long position, byte[] data, int offset, int length) throws IOException
+    {
+        check();
+        if(mappings != null) {
+            place(position, data, offset, length);
+            written += length;
+            return;
+        }
+        ByteBuffer b = ByteBuffer.wrap(data, offset, length);
+        while(b.hasRemaining())
+            position += fc.write(b, position);
+        written += length;
+    }
+
+    /*
+     * hand anything still buffered to the writer, wait for it to be
+     * written (and forced to disk, if asked for), and close the file.
+     * a mapped file is forced here, if asked for.
+     */
+    public void close() throws IOException
+    {
+        if(closed)
+            return;
+        closed = true;
+        try {
+            if(current.position() > 0 && error == null)
+                publish();
+            put(full, END);
+            writer.join();
+            if(mappings != null && sync && error == null) {
+                for(MappedByteBuffer m : mappings)
+                    m.force();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for the writer");
+        } finally {
+            if(owned)
+                fc.close();
+        }
+        check();
+    }
+
+    private void check() throws IOException
+    {
+        if(error != null)
+            throw error;
+    }
+
+    /* pass the current buffer to the writer, and take an empty one */
+    private void publish() throws IOException
+    {
+        current.flip();
+        put(full, current);
+        try {
+            current = free.take();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for a buffer");
+        }
+        check();
+    }
+
+    private static void put(ArrayBlockingQueue<ByteBuffer> q, ByteBuffer b) throws IOException
+    {
+        try {
+            q.put(b);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted waiting for the writer");
+        }
+    }
+
+    /*
+     * the writer thread: take every filled buffer that is waiting, and
+     * write them in one go (or, on a shared channel, one positional
+     * write each, since the channel's own position is not ours to
+     * move).  checkpoint the file once another checkpoint interval
+     * of it has been written, and at the end.  after an error, keep taking buffers (so
+     * the receiving thread never waits forever) but stop writing.
+     */
+    private void drain()
+    {
+        ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+        boolean end = false;
+        try {
+            while(!end) {
+                batch.add(full.take());
+                full.drainTo(batch);
+                if(batch.get(batch.size() - 1) == END) {
+                    batch.remove(batch.size() - 1);
+                    end = true;
+                }
+                if(error == null) {
+                    try {
+                        if(owned) {
+                            ByteBuffer[] bufs = batch.toArray(new ByteBuffer[batch.size()]);
+                            long left = 0;
+                            for(ByteBuffer b : bufs)
+                                left += b.remaining();
+                            while(left > 0)
+                                left -= fc.write(bufs);
+                        } else {
+                            for(ByteBuffer b : batch) {
+                                while(b.hasRemaining())
+                                    position += fc.write(b, position);
+                            }
+                        }
+                        if(end && sync)
+                            fc.force(true);
+                        if(checkpoint != null &&
+                           (end || fc.position() - checkpointed >= checkpoint.interval)) {
+                            fc.force(false);
+                            checkpointed = fc.position();
+                            checkpoint.save(checkpointed);
+                        }
+                    } catch(IOException e) {
+                        error = e;
+                    }
+                }
+                for(ByteBuffer b : batch) {
+                    b.clear();
+                    free.add(b);
+                }
+                batch.clear();
+            }
+        } catch(InterruptedException e) {
+            error = new IOException("writer interrupted");
+        }
+    }
+}
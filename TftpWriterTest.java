@@ -0,0 +1,134 @@
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TftpWriterTest
+{
+    /*
+     * write blocks of an awkward size through a ring of a few small
+     * buffers, so that blocks straddle buffers and the writer falls
+     * behind; ensure the file holds exactly what was written.
+     */
+    @Test
+    @DisplayName("test write behind")
+    void testWriteBehind() throws IOException {
+        File f = TftpTestFiles.temp();
+        TftpWriter w = new TftpWriter(f, true, 3, 1000);
+        byte[] block = new byte[1468];
+        byte[] expect = new byte[1468 * 100 + 7];
+        int off = 0;
+        for(int i = 0; i < 100; i++) {
+            for(int j = 0; j < block.length; j++) {
+                block[j] = (byte) (i * 7 + j);
+            }
+            w.write(block, 0, block.length);
+            System.arraycopy(block, 0, expect, off, block.length);
+            off += block.length;
+        }
+        w.write(block, 3, 7);
+        System.arraycopy(block, 3, expect, off, 7);
+        w.write(block, 0, 0);
+        assertEquals(expect.length, w.written());
+        w.close();
+        assertArrayEquals(expect, Files.readAllBytes(f.toPath()));
+    }
+
+    /* an empty file is created, and truncates any old contents */
+    @Test
+    @DisplayName("test empty")
+    void testEmpty() throws IOException {
+        File f = TftpTestFiles.temp();
+        Files.write(f.toPath(), new byte[100]);
+        TftpWriter w = new TftpWriter(f, false);
+        w.close();
+        assertEquals(0, f.length());
+    }
+
+    /* blocks written at their positions, in any order, make up the file */
+    @Test
+    @DisplayName("test write at")
+    void testWriteAt() throws IOException {
+        File f = TftpTestFiles.temp();
+        TftpWriter w = new TftpWriter(f, false);
+        byte[] expect = new byte[512 * 9 + 100];
+        for(int i = 0; i < expect.length; i++) {
+            expect[i] = (byte) (i * 13);
+        }
+        int[] order = { 9, 3, 0, 8, 1, 5, 2, 7, 4, 6 };
+        for(int n : order) {
+            w.writeAt(n * 512L, expect, n * 512, n < 9 ? 512 : 100);
+        }
+        assertEquals(expect.length, w.written());
+        w.close();
+        assertArrayEquals(expect, Files.readAllBytes(f.toPath()));
+    }
+
+    /*
+     * a writer carrying on from a checkpoint keeps what came before
+     * it, cuts off what came after, and checkpoints what it wrote
+     * when it is closed.
+     */
+    @Test
+    @DisplayName("test checkpoint")
+    void testCheckpoint() throws IOException {
+        File f = TftpTestFiles.temp();
+        byte[] expect = new byte[300000];
+        for(int i = 0; i < expect.length; i++) {
+            expect[i] = (byte) (i * 7);
+        }
+        Files.write(f.toPath(), Arrays.copyOf(expect, 120000));
+        TftpCheckpoint c = new TftpCheckpoint(f, "name", 64 << 10);
+        c.getFile().deleteOnExit();
+        c.setSize(expect.length);
+        TftpWriter w = new TftpWriter(f, false, 100000, c);
+        w.write(expect, 100000, 150000);
+        w.close();
+        assertEquals(250000 / 512 * 512, new TftpCheckpoint(f, "name").resumeAt(512));
+        assertEquals(150000, w.written());
+        assertArrayEquals(Arrays.copyOf(expect, 250000), Files.readAllBytes(f.toPath()));
+        c.delete();
+    }
+
+    /*
+     * a mapped file is its full size from the start; blocks placed
+     * ahead of time are counted once the blocks before them have been
+     * written, and nothing may go beyond the size.  a writer with
+     * something written already cannot be mapped.
+     */
+    @Test
+    @DisplayName("test map")
+    void testMap() throws IOException {
+        File f = TftpTestFiles.temp();
+        byte[] expect = new byte[512 * 5 + 100];
+        for(int i = 0; i < expect.length; i++) {
+            expect[i] = (byte) (i * 11);
+        }
+        TftpWriter w = new TftpWriter(f, true);
+        assertTrue(w.map(expect.length, 512));
+        assertEquals(expect.length, f.length(), "made its full size up front");
+        w.write(expect, 0, 512);
+        w.place(3 * 512L, expect, 3 * 512, 512);
+        w.place(5 * 512L, expect, 5 * 512, 100);
+        assertEquals(512, w.written(), "placed blocks are not written yet");
+        w.write(expect, 512, 1024);
+        assertEquals((byte) (3 * 512 * 11), w.placed(512).get(), "block 4, in place");
+        w.write(expect, 4 * 512, 512);
+        assertEquals(100, w.placed(100).remaining());
+        assertEquals(expect.length, w.written());
+        assertThrows(IOException.class, () -> w.write(expect, 0, 1));
+        w.close();
+        assertArrayEquals(expect, Files.readAllBytes(f.toPath()));
+
+        TftpWriter late = new TftpWriter(f, false);
+        late.write(expect, 0, 10);
+        assertFalse(late.map(expect.length, 512));
+        late.close();
+        assertEquals(10, f.length());
+    }
+}